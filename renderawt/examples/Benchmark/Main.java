@@ -0,0 +1,184 @@
+/* Main.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.scilab.forge.jlatexmath.CharFont;
+import org.scilab.forge.jlatexmath.DefaultTeXFont;
+import org.scilab.forge.jlatexmath.TeXConstants;
+
+/**
+ * Time the lookups of the kerns and the ligatures done by RowAtom.createBox: all the
+ * couples of letters and digits of the roman and of the math italic fonts are looked up
+ * in the fonts, and in HashMaps keyed by a couple of chars as the fonts did before.
+ * The exit status is the number of couples whose kern or ligature differ.
+ **/
+public class Main {
+
+    private static final int WARMUP = 20;
+    private static final int ROUNDS = 50;
+
+    public static void main(String[] args) {
+        DefaultTeXFont font = new DefaultTeXFont(20f);
+        // the digits are in the roman font and the letters in the math italic font
+        final int roman = font.getChar('0', "mathnormal", TeXConstants.STYLE_TEXT).getCharFont().fontId;
+        final int italic = font.getChar('a', "mathnormal", TeXConstants.STYLE_TEXT).getCharFont().fontId;
+        List<CharFont> chars = new ArrayList<CharFont>();
+        for (int fontId : new int[] {roman, italic}) {
+            for (char c = '0'; c <= 'z'; c++) {
+                if (Character.isLetterOrDigit(c)) {
+                    chars.add(new CharFont(c, fontId));
+                }
+            }
+        }
+        final CharFont[] cf = chars.toArray(new CharFont[chars.size()]);
+
+        // the reference tables, built as the fonts built theirs before
+        Map<Couple, Float> kerns = new HashMap<Couple, Float>();
+        Map<Couple, Character> ligatures = new HashMap<Couple, Character>();
+        int couples = 0;
+        for (CharFont left : cf) {
+            for (CharFont right : cf) {
+                if (left.fontId == right.fontId) {
+                    couples++;
+                    final float kern = font.getKern(left, right, TeXConstants.STYLE_TEXT);
+                    if (kern != 0) {
+                        kerns.put(new Couple(left.c, right.c, left.fontId), kern);
+                    }
+                    final CharFont lig = font.getLigature(left, right);
+                    if (lig != null) {
+                        ligatures.put(new Couple(left.c, right.c, left.fontId), lig.c);
+                    }
+                }
+            }
+        }
+        System.out.println(couples + " couples, " + kerns.size() + " kerns, " + ligatures.size() + " ligatures");
+
+        int failures = 0;
+        for (CharFont left : cf) {
+            for (CharFont right : cf) {
+                if (left.fontId == right.fontId) {
+                    Couple key = new Couple(left.c, right.c, left.fontId);
+                    Float kern = kerns.get(key);
+                    CharFont lig = font.getLigature(left, right);
+                    Character ref = ligatures.get(key);
+                    if (font.getKern(left, right, TeXConstants.STYLE_TEXT) != (kern == null ? 0f : kern.floatValue())
+                        || (lig == null ? ref != null : ref == null || lig.c != ref.charValue())) {
+                        System.out.println("FAILED  " + left.c + right.c + " in the font " + left.fontId);
+                        failures++;
+                    }
+                }
+            }
+        }
+
+        long fonts = 0, maps = 0;
+        float sum = 0;
+        for (int i = 0; i < WARMUP + ROUNDS; i++) {
+            long t = System.nanoTime();
+            sum += lookupFonts(font, cf);
+            final long t1 = System.nanoTime();
+            sum += lookupMaps(kerns, ligatures, cf);
+            final long t2 = System.nanoTime();
+            if (i >= WARMUP) {
+                fonts += t1 - t;
+                maps += t2 - t1;
+            }
+        }
+        final long lookups = 2L * ROUNDS * couples;
+        System.out.println("fonts:    " + (fonts / lookups) + "." + (10 * fonts / lookups % 10) + " ns per lookup");
+        System.out.println("HashMaps: " + (maps / lookups) + "." + (10 * maps / lookups % 10) + " ns per lookup");
+        // print the sum so that the lookups are not optimized away
+        System.out.println("(" + sum + ")");
+
+        System.exit(failures);
+    }
+
+    private static float lookupFonts(DefaultTeXFont font, CharFont[] cf) {
+        float sum = 0;
+        for (CharFont left : cf) {
+            for (CharFont right : cf) {
+                if (left.fontId == right.fontId) {
+                    sum += font.getKern(left, right, TeXConstants.STYLE_TEXT);
+                    if (font.getLigature(left, right) != null) {
+                        sum++;
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static float lookupMaps(Map<Couple, Float> kerns, Map<Couple, Character> ligatures, CharFont[] cf) {
+        float sum = 0;
+        for (CharFont left : cf) {
+            for (CharFont right : cf) {
+                if (left.fontId == right.fontId) {
+                    Float kern = kerns.get(new Couple(left.c, right.c, left.fontId));
+                    if (kern != null) {
+                        sum += kern.floatValue();
+                    }
+                    if (ligatures.get(new Couple(left.c, right.c, left.fontId)) != null) {
+                        sum++;
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The key of the HashMaps: a couple of chars of a font.
+     */
+    private static final class Couple {
+
+        private final char left;
+        private final char right;
+        private final int fontId;
+
+        Couple(char left, char right, int fontId) {
+            this.left = left;
+            this.right = right;
+            this.fontId = fontId;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Couple)) {
+                return false;
+            }
+            Couple c = (Couple) o;
+            return left == c.left && right == c.right && fontId == c.fontId;
+        }
+
+        public int hashCode() {
+            return (left + right) * 31 + fontId;
+        }
+    }
+}
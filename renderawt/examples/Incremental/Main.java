@@ -0,0 +1,107 @@
+/* Main.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+
+import org.scilab.forge.jlatexmath.MacroScope;
+import org.scilab.forge.jlatexmath.TeXConstants;
+import org.scilab.forge.jlatexmath.TeXFormulaAWT;
+
+/**
+ * Check the incremental mode of TeXFormula.setLaTeX: each formula is parsed, edited
+ * incrementally and rendered, and the image must be the same as the one of the edited
+ * formula parsed from scratch. The exit status is the number of failures.
+ **/
+public class Main {
+
+    private static final String[][] EDITS = {
+        // an edit inside a group
+        {"a+\\frac{x}{y+1}", "a+\\frac{x}{y+2}"},
+        {"\\sqrt{\\sqrt{a+b}}", "\\sqrt{\\sqrt{a+b+c}}"},
+        // edits at the boundaries of a group
+        {"\\sqrt{ab}", "\\sqrt{cab}"},
+        {"\\sqrt{ab}", "\\sqrt{abc}"},
+        {"x^{ab}+y", "x^{ab}c+y"},
+        {"\\sqrt{ab}", "\\sqrt{a}b"},
+        // an edit outside any group
+        {"a+b", "a-b"},
+        // edits defining or using a command
+        {"\\sqrt{a}", "\\sqrt{\\newcommand{\\foo}{b}\\foo}"},
+        {"\\newcommand{\\foo}{b}\\sqrt{\\foo}", "\\newcommand{\\foo}{b}\\sqrt{\\foo\\foo}"},
+        {"\\newcommand{\\foo}{b}\\sqrt{\\foo}", "\\newcommand{\\foo}{c}\\sqrt{\\foo}"},
+    };
+
+    public static void main(String[] args) {
+        int failures = 0;
+        for (String[] edit : EDITS) {
+            String error = check(edit[0], edit[1]);
+            if (error == null) {
+                System.out.println("OK      " + edit[0] + " -> " + edit[1]);
+            } else {
+                System.out.println("FAILED  " + edit[0] + " -> " + edit[1] + ": " + error);
+                failures++;
+            }
+        }
+
+        System.exit(failures);
+    }
+
+    private static String check(String before, String after) {
+        // a scope per formula: the commands defined by a test are not seen by the others
+        TeXFormulaAWT edited = new TeXFormulaAWT(before, new MacroScope());
+        edited.setIncremental(true);
+        edited.setLaTeX(before);
+        // lay out the first version so that its boxes can be reused
+        render(edited);
+        edited.setLaTeX(after);
+        BufferedImage incremental = render(edited);
+        BufferedImage full = render(new TeXFormulaAWT(after, new MacroScope()));
+
+        return compare(incremental, full);
+    }
+
+    private static BufferedImage render(TeXFormulaAWT formula) {
+        return (BufferedImage) formula.createBufferedImage(TeXConstants.STYLE_DISPLAY, 20, Color.BLACK, Color.WHITE);
+    }
+
+    private static String compare(BufferedImage a, BufferedImage b) {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
+            return "the size is " + a.getWidth() + "x" + a.getHeight() + " instead of " + b.getWidth() + "x" + b.getHeight();
+        }
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                if (a.getRGB(x, y) != b.getRGB(x, y)) {
+                    return "the pixel (" + x + ", " + y + ") differs";
+                }
+            }
+        }
+
+        return null;
+    }
+}
@@ -36,12 +36,48 @@ import org.scilab.forge.jlatexmath.TeXEnvironment;
 import org.scilab.forge.jlatexmath.TeXConstants;
 import org.scilab.forge.jlatexmath.SpaceAtom;
 import org.scilab.forge.jlatexmath.Box;
+import org.scilab.forge.jlatexmath.MacroHandler;
+import org.scilab.forge.jlatexmath.MacroPackage;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
 
-public class FooPackage {
+public class FooPackage implements MacroPackage {
+
+    /*
+     * The handlers are called directly by the parser, without reflection.
+     * If null is returned, the method methodName is called through the reflection.
+     */
+    public MacroHandler getMacroHandler(String methodName) {
+	if ("fooA_macro".equals(methodName)) {
+	    return new MacroHandler() {
+		public Object handle(TeXParser tp, String[] args) {
+		    return fooA_macro(tp, args);
+		}
+	    };
+	} else if ("fooB_macro".equals(methodName)) {
+	    return new MacroHandler() {
+		public Object handle(TeXParser tp, String[] args) {
+		    return fooB_macro(tp, args);
+		}
+	    };
+	} else if ("fooC_macro".equals(methodName)) {
+	    return new MacroHandler() {
+		public Object handle(TeXParser tp, String[] args) {
+		    return fooC_macro(tp, args);
+		}
+	    };
+	} else if ("fooD_macro".equals(methodName)) {
+	    return new MacroHandler() {
+		public Object handle(TeXParser tp, String[] args) {
+		    return fooD_macro(tp, args);
+		}
+	    };
+	}
+
+	return null;
+    }
     
     /*
      * The macro fooA is equivalent to \newcommand{\fooA}[2]{\frac{\textcolor{red}{#2}}{#1}}
@@ -0,0 +1,329 @@
+/* BatchRenderer.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+import java.awt.Color;
+import java.awt.Image;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Render a lot of formulas in parallel.
+ * <p>
+ * The formulas are parsed, laid out and painted by the threads of an executor and
+ * the number of jobs submitted but not finished is bounded: when the bound is
+ * reached the submission waits for the end of a job.
+ * <p>
+ * <pre>
+ * BatchRenderer renderer = new BatchRenderer(4, 64);
+ * renderer.render(jobs, new BatchRenderer.Sink() { ... });
+ * renderer.shutdown();
+ * </pre>
+ */
+public class BatchRenderer {
+
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final int maxPending;
+    private final Semaphore pending;
+
+    /**
+     * Create a renderer using its own pool of daemon threads
+     * @param nThreads the number of threads
+     * @param maxPending the max number of submitted jobs not yet rendered
+     */
+    public BatchRenderer(int nThreads, int maxPending) {
+        this(Executors.newFixedThreadPool(Math.max(nThreads, 1), new DaemonThreadFactory()), maxPending, true);
+    }
+
+    /**
+     * Create a renderer using the given executor, which is not shut down by {@link #shutdown()}
+     * @param executor the executor
+     * @param maxPending the max number of submitted jobs not yet rendered
+     */
+    public BatchRenderer(ExecutorService executor, int maxPending) {
+        this(executor, maxPending, false);
+    }
+
+    private BatchRenderer(ExecutorService executor, int maxPending, boolean ownExecutor) {
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.maxPending = Math.max(maxPending, 1);
+        this.pending = new Semaphore(this.maxPending);
+    }
+
+    /**
+     * Submit a job, waiting if there are too many pending jobs
+     * @param job the job
+     * @return the future image, its get method throws an ExecutionException wrapping
+     * the ParseException if the formula is not correct
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public Future<Image> submit(final Job job) throws InterruptedException {
+        pending.acquire();
+        // the permit is given back when the task is done, even if it is cancelled
+        // before running
+        FutureTask<Image> task = new FutureTask<Image>(new Callable<Image>() {
+                public Image call() throws ParseException {
+                    return job.render();
+                }
+            }) {
+                protected void done() {
+                    pending.release();
+                }
+            };
+        try {
+            executor.execute(task);
+        } catch (RuntimeException e) {
+            task.cancel(false);
+            throw e;
+        }
+
+        return task;
+    }
+
+    /**
+     * Submit all the jobs, waiting when there are too many pending jobs
+     * @param jobs the jobs
+     * @return the future images in the order of the jobs
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public List<Future<Image>> submitAll(Iterable<Job> jobs) throws InterruptedException {
+        List<Future<Image>> futures = new ArrayList<Future<Image>>();
+        for (Job job : jobs) {
+            futures.add(submit(job));
+        }
+
+        return futures;
+    }
+
+    /**
+     * Render all the jobs and give the results to the sink, in the order of the jobs
+     * and in the calling thread. The jobs are read from the iterator only when
+     * there is room for them, so it can produce them lazily.
+     * @param jobs the jobs
+     * @param sink the sink receiving the images
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void render(Iterable<Job> jobs, Sink sink) throws InterruptedException {
+        Deque<Pending> queue = new ArrayDeque<Pending>(maxPending);
+        int index = 0;
+        Iterator<Job> it = jobs.iterator();
+        while (it.hasNext()) {
+            if (queue.size() == maxPending) {
+                // the finished jobs are kept until the first one is given to the sink
+                deliver(queue.removeFirst(), sink);
+            }
+            Job job = it.next();
+            queue.addLast(new Pending(index++, job, submit(job)));
+            while (!queue.isEmpty() && queue.peekFirst().future.isDone()) {
+                deliver(queue.removeFirst(), sink);
+            }
+        }
+        while (!queue.isEmpty()) {
+            deliver(queue.removeFirst(), sink);
+        }
+    }
+
+    private static void deliver(Pending p, Sink sink) throws InterruptedException {
+        Image image;
+        try {
+            image = p.future.get();
+        } catch (ExecutionException e) {
+            sink.error(p.index, p.job, e.getCause());
+            return;
+        }
+        sink.image(p.index, p.job, image);
+    }
+
+    /**
+     * Shut down the executor if it has been created by this renderer
+     */
+    public void shutdown() {
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The receiver of the images rendered by {@link BatchRenderer#render(Iterable, Sink)}
+     */
+    public interface Sink {
+
+        /**
+         * @param index the index of the job
+         * @param job the job
+         * @param image the rendered image
+         */
+        void image(int index, Job job, Image image);
+
+        /**
+         * @param index the index of the job
+         * @param job the job
+         * @param error the error, generally a ParseException
+         */
+        void error(int index, Job job, Throwable error);
+    }
+
+    /**
+     * A formula to render, as with {@link TeXFormulaAWT#createBufferedImage(String, int, float, Color, Color, MacroScope, ParseLimits)}.
+     * The commands defined by a formula are only visible in the scope of its job, a new scope
+     * above the global one if no scope is given.
+     */
+    public static class Job {
+
+        private final String latex;
+        private final int style;
+        private final float size;
+        private final Color fg;
+        private final Color bg;
+        private final MacroScope scope;
+        private final ParseLimits limits;
+
+        /**
+         * @param latex the formula
+         * @param style the style
+         * @param size the size
+         * @param fg the foreground color, black if null
+         * @param bg the background color, transparent if null
+         */
+        public Job(String latex, int style, float size, Color fg, Color bg) {
+            this(latex, style, size, fg, bg, null);
+        }
+
+        /**
+         * @param latex the formula
+         * @param style the style
+         * @param size the size
+         * @param fg the foreground color, black if null
+         * @param bg the background color, transparent if null
+         * @param scope the scope where the commands are looked up and defined, a new one if null
+         */
+        public Job(String latex, int style, float size, Color fg, Color bg, MacroScope scope) {
+            this(latex, style, size, fg, bg, scope, null);
+        }
+
+        /**
+         * @param latex the formula
+         * @param style the style
+         * @param size the size
+         * @param fg the foreground color, black if null
+         * @param bg the background color, transparent if null
+         * @param scope the scope where the commands are looked up and defined, a new one if null
+         * @param limits the limits of the parse and of the layout, null for the default ones
+         */
+        public Job(String latex, int style, float size, Color fg, Color bg, MacroScope scope, ParseLimits limits) {
+            this.latex = latex;
+            this.style = style;
+            this.size = size;
+            this.fg = fg;
+            this.bg = bg;
+            this.scope = scope;
+            this.limits = limits;
+        }
+
+        public String getLaTeX() {
+            return latex;
+        }
+
+        public int getStyle() {
+            return style;
+        }
+
+        public float getSize() {
+            return size;
+        }
+
+        public Color getForeground() {
+            return fg;
+        }
+
+        public Color getBackground() {
+            return bg;
+        }
+
+        /**
+         * @return the scope given to the constructor, null if the job uses a new one
+         */
+        public MacroScope getMacroScope() {
+            return scope;
+        }
+
+        /**
+         * @return the limits given to the constructor, null if the job uses the default ones
+         */
+        public ParseLimits getParseLimits() {
+            return limits;
+        }
+
+        /**
+         * Render the formula, can be overridden to render it differently
+         * @return the image
+         */
+        protected Image render() throws ParseException {
+            return TeXFormulaAWT.createBufferedImage(latex, style, size, fg, bg, scope == null ? new MacroScope() : scope, limits);
+        }
+    }
+
+    private static final class Pending {
+
+        final int index;
+        final Job job;
+        final Future<Image> future;
+
+        Pending(int index, Job job, Future<Image> future) {
+            this.index = index;
+            this.job = job;
+            this.future = future;
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+
+        private static final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "jlatexmath-batch-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
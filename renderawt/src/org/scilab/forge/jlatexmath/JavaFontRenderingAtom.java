@@ -51,7 +51,7 @@ public class JavaFontRenderingAtom extends Atom {
 
     public Box createBox(TeXEnvironment env) {
         if (fontInfos == null) {
-	    return new JavaFontRenderingBox(str, type, DefaultTeXFont.getSizeFactor(env.getStyle()));
+	    return new JavaFontRenderingBox(str, type, env.getRenderContext().getSizeFactor(env.getStyle()));
 	} else {
 	    DefaultTeXFont dtf = (DefaultTeXFont) env.getTeXFont();
 	    int type = dtf.isIt ? Font.ITALIC : Font.PLAIN;
@@ -71,7 +71,7 @@ public class JavaFontRenderingAtom extends Atom {
 		    font = new Font(fontInfos.serif, Font.PLAIN, 10);
 		}
 	    }
-	    return new JavaFontRenderingBox(str, type, DefaultTeXFont.getSizeFactor(env.getStyle()), font, kerning);
+	    return new JavaFontRenderingBox(str, type, env.getRenderContext().getSizeFactor(env.getStyle()), font, kerning);
 	}
     }
 }
@@ -30,10 +30,10 @@ package org.scilab.forge.jlatexmath;
 
 import java.awt.Font;
 import java.awt.Graphics2D;
+import java.awt.font.FontRenderContext;
 import java.awt.font.TextAttribute;
 import java.awt.font.TextLayout;
 import java.awt.geom.Rectangle2D;
-import java.awt.image.BufferedImage;
 import java.util.Hashtable;
 import java.util.Map;
 
@@ -42,7 +42,8 @@ import java.util.Map;
  */
 public class JavaFontRenderingBox extends Box {
 
-    private static final Graphics2D TEMPGRAPHIC = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+    // immutable, so the layouts can be made from any thread (same as the context of an image graphics)
+    private static final FontRenderContext FRC = new FontRenderContext(null, false, false);
 
     private static Font font = new Font("Serif", Font.PLAIN, 10);
 
@@ -74,7 +75,7 @@ public class JavaFontRenderingBox extends Box {
             f = f.deriveFont(map);
         }
 
-        this.text = new TextLayout(str, f.deriveFont(type), TEMPGRAPHIC.getFontRenderContext());
+        this.text = new TextLayout(str, f.deriveFont(type), FRC);
         Rectangle2D rect = text.getBounds();
         this.height = (float) (-rect.getY() * size / 10);
         this.depth = (float) (rect.getHeight() * size / 10) - this.height;
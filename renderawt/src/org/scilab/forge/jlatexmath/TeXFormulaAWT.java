@@ -10,7 +10,36 @@ import java.io.IOException;
 public class TeXFormulaAWT extends TeXFormula
 {
     public TeXFormulaAWT( String formula ) {
-        super( formula );
+        this( formula, null );
+    }
+
+    /**
+     * Creates a TeXFormulaAWT by parsing the given string in the given scope: the
+     * commands defined in the string are only visible in this scope.
+     *
+     * @param formula the string to be parsed
+     * @param scope the scope where the commands are looked up and defined, null for the global one
+     * @throws ParseException if the string could not be parsed correctly
+     */
+    public TeXFormulaAWT( String formula, MacroScope scope ) {
+        this( formula, scope, null );
+    }
+
+    /**
+     * Creates a TeXFormulaAWT by parsing the given string in the given scope and with
+     * the given limits.
+     *
+     * @param formula the string to be parsed
+     * @param scope the scope where the commands are looked up and defined, null for the global one
+     * @param limits the limits of the parse and of the layout, null for the default ones
+     * @throws ParseException if the string could not be parsed correctly
+     * @throws LimitExceededException if a limit is exceeded
+     */
+    public TeXFormulaAWT( String formula, MacroScope scope, ParseLimits limits ) {
+        macroScope = scope;
+        this.limits = limits;
+        parser = new TeXParser( formula, this );
+        parser.parse();
     }
 
     /**
@@ -101,7 +130,30 @@ public class TeXFormulaAWT extends TeXFormula
      * @return the generated image
      */
     public static Image createBufferedImage(String formula, int style, float size, Color fg, Color bg) throws ParseException {
-        TeXFormulaAWT f = new TeXFormulaAWT(formula);
+        return createBufferedImage(formula, style, size, fg, bg, null);
+    }
+
+    /**
+     * @param formula the formula
+     * @param style the style
+     * @param size the size
+     * @param scope the scope where the commands are looked up and defined, null for the global one
+     * @return the generated image
+     */
+    public static Image createBufferedImage(String formula, int style, float size, Color fg, Color bg, MacroScope scope) throws ParseException {
+        return createBufferedImage(formula, style, size, fg, bg, scope, null);
+    }
+
+    /**
+     * @param formula the formula
+     * @param style the style
+     * @param size the size
+     * @param scope the scope where the commands are looked up and defined, null for the global one
+     * @param limits the limits of the parse and of the layout, null for the default ones
+     * @return the generated image
+     */
+    public static Image createBufferedImage(String formula, int style, float size, Color fg, Color bg, MacroScope scope, ParseLimits limits) throws ParseException {
+        TeXFormulaAWT f = new TeXFormulaAWT(formula, scope, limits);
         TeXIcon icon = f.createTeXIcon(style, size);
         icon.setInsets(new Insets(2, 2, 2, 2));
         int w = icon.getIconWidth(), h = icon.getIconHeight();
@@ -156,6 +208,7 @@ public class TeXFormulaAWT extends TeXFormula
         private boolean isMaxWidth = false;
         private Integer interLineUnit;
         private Float interLineSpacing;
+        private RenderContext context;
 
         /**
          * Specify the style for rendering the given TeXFormula
@@ -279,6 +332,18 @@ public class TeXFormulaAWT extends TeXFormula
             return this;
         }
 
+        /**
+         * Specify the context (DPI, math sizes, magnification) used for rendering the given TeXFormula.
+         * By default the context is made from the global settings when the icon is built.
+         * @param context the context
+         * @return the builder, used for chaining
+         */
+        public TeXIconBuilder setRenderContext(final RenderContext context)
+        {
+            this.context = context;
+            return this;
+        }
+
         /**
          * Create a TeXIcon from the information gathered by the (chained) setXXX() methods.
          * (see Builder pattern)
@@ -294,7 +359,39 @@ public class TeXFormulaAWT extends TeXFormula
             {
                 throw new IllegalStateException("A size is required. Use setStyle()");
             }
-            DefaultTeXFont font = (type == null) ? new DefaultTeXFont(size) : createFont(size, type);
+            RenderContext ctx = context == null ? RenderContext.getDefault() : context;
+            LayoutCache.Key key = null;
+            LayoutCache.Layout layout = null;
+            if (LayoutCache.isEnabled())
+            {
+                key = new LayoutCache.Key(TeXFormulaAWT.this, ctx, style, size, type == null ? -1 : type,
+                                          widthUnit == null ? -1 : widthUnit, widthUnit == null ? -1 : textWidth,
+                                          widthUnit == null ? -1 : align, isMaxWidth,
+                                          interLineUnit == null ? -1 : interLineUnit,
+                                          interLineUnit == null ? -1 : interLineSpacing);
+                layout = LayoutCache.get(key);
+            }
+
+            if (layout == null)
+            {
+                layout = layout(ctx);
+                if (key != null)
+                {
+                    LayoutCache.put(key, layout);
+                }
+            }
+
+            TeXIcon ti = new TeXIcon(layout.box, size, trueValues, ctx);
+            if (fgcolor != null) {
+                ti.setForeground(fgcolor);
+            }
+            ti.isColored = layout.isColored;
+            return ti;
+        }
+
+        private LayoutCache.Layout layout(RenderContext ctx)
+        {
+            DefaultTeXFont font = (type == null) ? new DefaultTeXFont(size, ctx) : createFont(size, type, ctx);
             TeXEnvironment te;
             if (widthUnit != null)
             {
@@ -310,7 +407,6 @@ public class TeXFormulaAWT extends TeXFormula
             }
 
             Box box = createBox(te);
-            TeXIcon ti;
             if (widthUnit != null)
             {
                 HorizontalBox hb;
@@ -324,17 +420,10 @@ public class TeXFormulaAWT extends TeXFormula
                 {
                     hb = new HorizontalBox(box, isMaxWidth ? box.getWidth() : te.getTextwidth(), align);
                 }
-                ti = new TeXIcon(hb, size, trueValues);
-            }
-            else
-            {
-                ti = new TeXIcon(box, size, trueValues);
+                box = hb;
             }
-            if (fgcolor != null) {
-                ti.setForeground(fgcolor);
-            }
-            ti.isColored = te.isColored;
-            return ti;
+
+            return new LayoutCache.Layout(box, te.isColored);
         }
     }
 }
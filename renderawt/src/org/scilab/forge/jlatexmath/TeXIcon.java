@@ -74,14 +74,18 @@ public class TeXIcon implements Icon {
     }
 
     protected TeXIcon( Box b, float size, boolean trueValues ) {
+        this(b, size, trueValues, RenderContext.getDefault());
+    }
+
+    protected TeXIcon( Box b, float size, boolean trueValues, RenderContext context ) {
         box = b;
 
-        if ( TeXFormula.defaultSize != -1) {
-            size = TeXFormula.defaultSize;
+        if (context.getDefaultSize() != -1) {
+            size = context.getDefaultSize();
         }
 
-        if ( TeXFormula.magFactor != 0) {
-            this.size = size * Math.abs( TeXFormula.magFactor);
+        if (context.getMagFactor() != 0) {
+            this.size = size * Math.abs(context.getMagFactor());
         } else {
             this.size = size;
         }
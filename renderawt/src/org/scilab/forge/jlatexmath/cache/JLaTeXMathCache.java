@@ -34,38 +34,121 @@ import java.awt.Image;
 import java.awt.Insets;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.scilab.forge.jlatexmath.LimitExceededException;
+import org.scilab.forge.jlatexmath.MacroScope;
+import org.scilab.forge.jlatexmath.ParseLimits;
 import org.scilab.forge.jlatexmath.TeXFormulaAWT;
 import org.scilab.forge.jlatexmath.ParseException;
 import org.scilab.forge.jlatexmath.TeXIcon;
 
 /**
- * Class to cache generated image from formulas
+ * Class to cache generated image from formulas.
+ * The cache is bounded by a number of images and by the number of bytes used by their
+ * pixels, the least recently used images are removed first.
+ * When several threads ask for the same image which is not cached, only one of them
+ * renders it and the others wait for its result.
+ * The formulas are parsed in the scope given with them, or else in a new scope above
+ * the global one, so the commands they define are never visible by the other formulas.
+ * The version of the scope is a part of the key of an image.
  * @author Calixte DENIZET
  */
 public final class JLaTeXMathCache {
 
     private static final AffineTransform identity = new AffineTransform();
-    private static ConcurrentMap<CachedTeXFormula, SoftReference<CachedImage>> cache = new ConcurrentHashMap<CachedTeXFormula, SoftReference<CachedImage>>(128);
-    private static int max = Integer.MAX_VALUE;
-    private static ReferenceQueue queue = new ReferenceQueue();
+    private static final Map<CachedTeXFormula, CachedImage> cache = new LinkedHashMap<CachedTeXFormula, CachedImage>(128, 0.75f, true);
+    // the images being rendered
+    private static final Map<CachedTeXFormula, FutureTask<CachedImage>> inFlight = new HashMap<CachedTeXFormula, FutureTask<CachedImage>>();
+    private static int max = 512;
+    private static long maxBytes = 32L * 1024L * 1024L;
+    private static long bytes;
+    private static long hits;
+    private static long misses;
+    private static long evictions;
+    private static volatile ParseLimits limits;
 
     private JLaTeXMathCache() { }
 
     /**
-     * Set max size. Take care the cache will be reinitialized
+     * Set the max number of cached images. The least recently used images are
+     * removed if the cache contains more images.
      * @param max the max size
      */
-    public static void setMaxCachedObjects(int max) {
+    public static synchronized void setMaxCachedObjects(int max) {
         JLaTeXMathCache.max = Math.max(max, 1);
-        cache.clear();
-        cache = new ConcurrentHashMap<CachedTeXFormula, SoftReference<CachedImage>>(JLaTeXMathCache.max);
+        trim();
+    }
+
+    public static synchronized int getMaxCachedObjects() {
+        return max;
+    }
+
+    /**
+     * Set the max number of bytes used by the pixels of the cached images. The least
+     * recently used images are removed if the cache uses more bytes.
+     * @param maxBytes the max number of bytes
+     */
+    public static synchronized void setMaxCachedBytes(long maxBytes) {
+        JLaTeXMathCache.maxBytes = Math.max(maxBytes, 1);
+        trim();
+    }
+
+    public static synchronized long getMaxCachedBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the number of cached images
+     */
+    public static synchronized int getCachedObjects() {
+        return cache.size();
+    }
+
+    /**
+     * @return the number of bytes used by the pixels of the cached images
+     */
+    public static synchronized long getCachedBytes() {
+        return bytes;
+    }
+
+    public static synchronized long getHits() {
+        return hits;
+    }
+
+    public static synchronized long getMisses() {
+        return misses;
+    }
+
+    public static synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Set the limits of the parse and of the layout of the formulas rendered by the cache.
+     * A formula exceeding them is not cached and a {@link LimitExceededException} is thrown.
+     * @param limits the limits, null for the default ones
+     */
+    public static void setParseLimits(ParseLimits limits) {
+        JLaTeXMathCache.limits = limits;
+    }
+
+    /**
+     * @return the limits given to {@link #setParseLimits(ParseLimits)}, null for the default ones
+     */
+    public static ParseLimits getParseLimits() {
+        return limits;
     }
 
     /**
@@ -92,10 +175,7 @@ public final class JLaTeXMathCache {
             return new int[]{0, 0, 0};
         }
         CachedTeXFormula cached = (CachedTeXFormula) o;
-        SoftReference<CachedImage> img = cache.get(cached);
-        if (img == null || img.get() == null) {
-            img = makeImage(cached);
-        }
+        getImage(cached);
 
         return new int[]{cached.width, cached.height, cached.depth};
     }
@@ -110,10 +190,7 @@ public final class JLaTeXMathCache {
      */
     public static Object getCachedTeXFormula(String f, int style, int type, int size, int inset, Color fgcolor) throws ParseException  {
         CachedTeXFormula cached = new CachedTeXFormula(f, style, type, size, inset, fgcolor);
-        SoftReference<CachedImage> img = cache.get(cached);
-        if (img == null || img.get() == null) {
-            img = makeImage(cached);
-        }
+        getImage(cached);
 
         return cached;
     }
@@ -123,10 +200,30 @@ public final class JLaTeXMathCache {
     }
 
     /**
-     * Clear the cache
+     * Get a cached formula parsed in the given scope
+     * @param f a formula
+     * @param style a style like TeXConstants.STYLE_DISPLAY
+     * @param size the size of font
+     * @param inset the inset to add on the top, bottom, left and right
+     * @param scope the scope where the commands are looked up and defined, a new one if null
+     * @return the key in the map
+     */
+    public static Object getCachedTeXFormula(String f, int style, int type, int size, int inset, Color fgcolor, MacroScope scope) throws ParseException  {
+        CachedTeXFormula cached = new CachedTeXFormula(f, style, type, size, inset, fgcolor, scope);
+        getImage(cached);
+
+        return cached;
+    }
+
+    /**
+     * Clear the cache and reset the statistics
      */
-    public static void clearCache() {
+    public static synchronized void clearCache() {
         cache.clear();
+        bytes = 0;
+        hits = 0;
+        misses = 0;
+        evictions = 0;
     }
 
     /**
@@ -137,7 +234,7 @@ public final class JLaTeXMathCache {
      * @param inset the inset to add on the top, bottom, left and right
      */
     public static void removeCachedTeXFormula(String f, int style, int type, int size, int inset, Color fgcolor) throws ParseException  {
-        cache.remove(new CachedTeXFormula(f, style, type, size, inset, fgcolor));
+        remove(new CachedTeXFormula(f, style, type, size, inset, fgcolor));
     }
 
     public static void removeCachedTeXFormula(String f, int style, int size, int inset) throws ParseException  {
@@ -150,7 +247,7 @@ public final class JLaTeXMathCache {
      */
     public static void removeCachedTeXFormula(Object o) throws ParseException  {
         if (o != null && o instanceof CachedTeXFormula) {
-            cache.remove((CachedTeXFormula) o);
+            remove((CachedTeXFormula) o);
         }
     }
 
@@ -181,11 +278,7 @@ public final class JLaTeXMathCache {
             return null;
         }
         CachedTeXFormula cached = (CachedTeXFormula) o;
-        SoftReference<CachedImage> img = cache.get(cached);
-        if (img == null || img.get() == null) {
-            img = makeImage(cached);
-        }
-        g.drawImage(img.get().image, identity, null);
+        g.drawImage(getImage(cached).image, identity, null);
 
         return cached;
     }
@@ -206,6 +299,19 @@ public final class JLaTeXMathCache {
         return getCachedTeXFormulaImage(f, style, 0, size, inset, null);
     }
 
+    /**
+     * Get a cached formula parsed in the given scope
+     * @param f a formula
+     * @param style a style like TeXConstants.STYLE_DISPLAY
+     * @param size the size of font
+     * @param inset the inset to add on the top, bottom, left and right
+     * @param scope the scope where the commands are looked up and defined, a new one if null
+     * @return the cached image
+     */
+    public static Image getCachedTeXFormulaImage(String f, int style, int type, int size, int inset, Color fgcolor, MacroScope scope) throws ParseException {
+        return getCachedTeXFormulaImage(new CachedTeXFormula(f, style, type, size, inset, fgcolor, scope));
+    }
+
     /**
      * Get a cached formula
      * @param o an Object to identify the image in the cache
@@ -215,79 +321,319 @@ public final class JLaTeXMathCache {
         if (o == null || !(o instanceof CachedTeXFormula)) {
             return null;
         }
-        CachedTeXFormula cached = (CachedTeXFormula) o;
-        SoftReference<CachedImage> img = cache.get(cached);
-        if (img == null || img.get() == null) {
-            img = makeImage(cached);
+
+        return getImage((CachedTeXFormula) o).image;
+    }
+
+    /**
+     * Get a cached formula asynchronously
+     * @param f a formula
+     * @param style a style like TeXConstants.STYLE_DISPLAY
+     * @param size the size of font
+     * @param inset the inset to add on the top, bottom, left and right
+     * @param executor the executor used to render the image if it is not cached
+     * @return the future cached image
+     */
+    public static Future<Image> getCachedTeXFormulaImageAsync(String f, int style, int type, int size, int inset, Color fgcolor, Executor executor) {
+        return getCachedTeXFormulaImageAsync(new CachedTeXFormula(f, style, type, size, inset, fgcolor), executor);
+    }
+
+    /**
+     * Get a cached formula parsed in the given scope asynchronously
+     * @param f a formula
+     * @param style a style like TeXConstants.STYLE_DISPLAY
+     * @param size the size of font
+     * @param inset the inset to add on the top, bottom, left and right
+     * @param scope the scope where the commands are looked up and defined, a new one if null
+     * @param executor the executor used to render the image if it is not cached
+     * @return the future cached image
+     */
+    public static Future<Image> getCachedTeXFormulaImageAsync(String f, int style, int type, int size, int inset, Color fgcolor, MacroScope scope, Executor executor) {
+        return getCachedTeXFormulaImageAsync(new CachedTeXFormula(f, style, type, size, inset, fgcolor, scope), executor);
+    }
+
+    /**
+     * Get a cached formula asynchronously. If the image is cached the returned future
+     * is already done, if it is being rendered the returned future waits for this
+     * rendering, else the rendering is submitted to the executor.
+     * @param o an Object to identify the image in the cache
+     * @param executor the executor used to render the image if it is not cached
+     * @return the future cached image or null if o is not a cached formula
+     * @throws RejectedExecutionException if the executor refuses the rendering, the
+     * futures already returned for the same formula are then cancelled
+     */
+    public static Future<Image> getCachedTeXFormulaImageAsync(Object o, Executor executor) {
+        if (o == null || !(o instanceof CachedTeXFormula)) {
+            return null;
+        }
+        final CachedTeXFormula cached = (CachedTeXFormula) o;
+        FutureTask<CachedImage> task;
+        boolean leader = false;
+        synchronized (JLaTeXMathCache.class) {
+            CachedImage img = cache.get(cached);
+            if (img != null) {
+                hits++;
+                cached.setDimensions(img.width, img.height, img.depth);
+                return new ImageFuture(null, img, cached);
+            }
+            misses++;
+            task = inFlight.get(cached);
+            if (task == null) {
+                task = newFlight(cached);
+                leader = true;
+            }
+        }
+
+        if (leader) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // the task will never run: forget it and wake up the other waiters
+                synchronized (JLaTeXMathCache.class) {
+                    if (inFlight.get(cached) == task) {
+                        inFlight.remove(cached);
+                    }
+                }
+                task.cancel(false);
+                throw e;
+            }
         }
 
-        return img.get().image;
+        return new ImageFuture(task, null, cached);
     }
 
-    private static SoftReference<CachedImage> makeImage(CachedTeXFormula cached) throws ParseException {
-        TeXFormulaAWT formula = new TeXFormulaAWT(cached.f);
+    private static CachedImage getImage(CachedTeXFormula cached) throws ParseException {
+        FutureTask<CachedImage> task;
+        boolean leader = false;
+        synchronized (JLaTeXMathCache.class) {
+            CachedImage img = cache.get(cached);
+            if (img != null) {
+                hits++;
+                cached.setDimensions(img.width, img.height, img.depth);
+                return img;
+            }
+            misses++;
+            task = inFlight.get(cached);
+            if (task == null) {
+                task = newFlight(cached);
+                leader = true;
+            }
+        }
+
+        if (leader) {
+            task.run();
+        }
+        CachedImage img = await(task);
+        cached.setDimensions(img.width, img.height, img.depth);
+
+        return img;
+    }
+
+    /**
+     * Create the task rendering an image and register it as being in flight.
+     * Must be called with the class lock held.
+     */
+    private static FutureTask<CachedImage> newFlight(final CachedTeXFormula cached) {
+        final CachedTeXFormula key = cached.copy();
+        FutureTask<CachedImage> task = new FutureTask<CachedImage>(new Callable<CachedImage>() {
+                public CachedImage call() throws ParseException {
+                    try {
+                        CachedImage img = makeImage(key);
+                        put(key, img);
+                        return img;
+                    } finally {
+                        synchronized (JLaTeXMathCache.class) {
+                            inFlight.remove(key);
+                        }
+                    }
+                }
+            });
+        inFlight.put(key, task);
+
+        return task;
+    }
+
+    /**
+     * Wait for the end of a rendering, the interruptions are delayed until its end
+     */
+    private static CachedImage await(Future<CachedImage> task) throws ParseException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new ParseException("Cannot render the formula", cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static CachedImage makeImage(CachedTeXFormula cached) throws ParseException {
+        TeXFormulaAWT formula = new TeXFormulaAWT(cached.f, cached.scope == null ? new MacroScope() : cached.scope, limits);
         TeXIcon icon = formula.createTeXIcon(cached.style, cached.size, cached.type, cached.fgcolor);
         icon.setInsets(new Insets(cached.inset, cached.inset, cached.inset, cached.inset));
         BufferedImage image = new BufferedImage(icon.getIconWidth(), icon.getIconHeight(), BufferedImage.TYPE_INT_ARGB);
         Graphics2D g2 = image.createGraphics();
         icon.paintIcon(null, g2, 0, 0);
         g2.dispose();
-        cached.setDimensions(icon.getIconWidth(), icon.getIconHeight(), icon.getIconDepth());
-        SoftReference<CachedImage> img = new SoftReference<CachedImage>(new CachedImage(image, cached), queue);
-
-        if (cache.size() >= max) {
-            Reference soft;
-            while ((soft = queue.poll()) != null) {
-                CachedImage ci = (CachedImage) soft.get();
-                if (ci != null) {
-                    cache.remove(ci.cachedTf);
-                }
-            }
-            Iterator<CachedTeXFormula> iter = cache.keySet().iterator();
-            if (iter.hasNext()) {
-                CachedTeXFormula c = iter.next();
-                SoftReference<CachedImage> cachedImage = cache.get(c);
-                if (cachedImage != null) {
-                    cachedImage.clear();
-                }
-                cache.remove(c);
-            }
+
+        return new CachedImage(image, icon.getIconWidth(), icon.getIconHeight(), icon.getIconDepth());
+    }
+
+    private static synchronized void put(CachedTeXFormula cached, CachedImage img) {
+        if (img.bytes > maxBytes) {
+            // this image alone would empty the cache
+            return;
         }
-        cache.put(cached, img);
 
-        return img;
+        CachedImage old = cache.put(cached, img);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+        bytes += img.bytes;
+        trim();
+    }
+
+    private static synchronized void remove(CachedTeXFormula cached) {
+        CachedImage old = cache.remove(cached);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+    }
+
+    /**
+     * Remove the least recently used images until the limits are respected
+     */
+    private static void trim() {
+        Iterator<CachedImage> iter = cache.values().iterator();
+        while ((cache.size() > max || bytes > maxBytes) && iter.hasNext()) {
+            bytes -= iter.next().bytes;
+            iter.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * A future image updating the dimensions of the key given by the user
+     */
+    private static class ImageFuture implements Future<Image> {
+
+        final Future<CachedImage> task;
+        final CachedImage done;
+        final CachedTeXFormula cached;
+
+        ImageFuture(Future<CachedImage> task, CachedImage done, CachedTeXFormula cached) {
+            this.task = task;
+            this.done = done;
+            this.cached = cached;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // the rendering may be shared with other threads
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return done != null || task.isDone();
+        }
+
+        public Image get() throws InterruptedException, ExecutionException {
+            return image(done != null ? done : task.get());
+        }
+
+        public Image get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return image(done != null ? done : task.get(timeout, unit));
+        }
+
+        private Image image(CachedImage img) {
+            cached.setDimensions(img.width, img.height, img.depth);
+            return img.image;
+        }
     }
 
     private static class CachedImage {
 
-        Image image;
-        CachedTeXFormula cachedTf;
+        final Image image;
+        final int width;
+        final int height;
+        final int depth;
+        final long bytes;
 
-        CachedImage(Image image, CachedTeXFormula cachedTf) {
+        CachedImage(BufferedImage image, int width, int height, int depth) {
             this.image = image;
-            this.cachedTf = cachedTf;
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+            // TYPE_INT_ARGB: one int per pixel
+            this.bytes = 4L * image.getWidth() * image.getHeight();
         }
     }
 
     private static class CachedTeXFormula {
 
-        String f;
-        int style;
-        int type;
-        int size;
-        int inset;
+        final String f;
+        final int style;
+        final int type;
+        final int size;
+        final int inset;
+        final Color fgcolor;
+        // the scope given by the user and its version, or the version of the global tables
+        final MacroScope scope;
+        final int version;
+        final int hash;
         int width = -1;
         int height;
         int depth;
-        Color fgcolor;
 
         CachedTeXFormula(String f, int style, int type, int size, int inset, Color fgcolor) {
+            this(f, style, type, size, inset, fgcolor, null);
+        }
+
+        CachedTeXFormula(String f, int style, int type, int size, int inset, Color fgcolor, MacroScope scope) {
+            this(f, style, type, size, inset, fgcolor, scope, scope == null ? MacroScope.getGlobalVersion() : scope.getVersion());
+        }
+
+        private CachedTeXFormula(String f, int style, int type, int size, int inset, Color fgcolor, MacroScope scope, int version) {
             this.f = f;
             this.style = style;
             this.type = type;
             this.size = size;
             this.inset = inset;
             this.fgcolor = fgcolor;
+            this.scope = scope;
+            this.version = version;
+
+            int h = f.hashCode();
+            h = 31 * h + style;
+            h = 31 * h + type;
+            h = 31 * h + size;
+            h = 31 * h + inset;
+            h = 31 * h + (fgcolor == null ? 0 : fgcolor.hashCode());
+            h = 31 * h + System.identityHashCode(scope);
+            h = 31 * h + version;
+            this.hash = h;
+        }
+
+        CachedTeXFormula copy() {
+            return new CachedTeXFormula(f, style, type, size, inset, fgcolor, scope, version);
         }
 
         void setDimensions(int width, int height, int depth) {
@@ -302,20 +648,9 @@ public final class JLaTeXMathCache {
         public boolean equals(Object o) {
             if (o != null && o instanceof CachedTeXFormula) {
                 CachedTeXFormula c = (CachedTeXFormula) o;
-                boolean b = (c.f.equals(f) && c.style == style && c.type == type && c.size == size && c.inset == inset && c.fgcolor.equals(fgcolor));
-                if (b) {
-                    if (c.width == -1) {
-                        c.width = width;
-                        c.height = height;
-                        c.depth = depth;
-                    } else if (width == -1) {
-                        width = c.width;
-                        height = c.height;
-                        depth = c.depth;
-                    }
-                }
-
-                return b;
+                return hash == c.hash && c.f.equals(f) && c.style == style && c.type == type && c.size == size && c.inset == inset
+                    && (fgcolor == null ? c.fgcolor == null : fgcolor.equals(c.fgcolor))
+                    && c.scope == scope && c.version == version;
             }
 
             return false;
@@ -325,7 +660,7 @@ public final class JLaTeXMathCache {
          * {@inheritDoc}
          */
         public int hashCode() {
-            return f.hashCode();
+            return hash;
         }
     }
 }
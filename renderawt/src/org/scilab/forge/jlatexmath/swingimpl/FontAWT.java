@@ -0,0 +1,16 @@
+package org.scilab.forge.jlatexmath.swingimpl;
+
+import com.dhsdevelopments.androidjlatexmath.swingcompat.Font;
+
+public class FontAWT implements Font
+{
+    private final java.awt.Font backend;
+
+    public FontAWT( java.awt.Font backend ) {
+        this.backend = backend;
+    }
+
+    public java.awt.Font getBackend() {
+        return backend;
+    }
+}
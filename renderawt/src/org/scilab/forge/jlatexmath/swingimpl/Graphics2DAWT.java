@@ -3,14 +3,18 @@ package org.scilab.forge.jlatexmath.swingimpl;
 
 import java.awt.*;
 import java.awt.Graphics2D;
+import java.awt.font.GlyphVector;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Line2D;
+import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.geom.RoundRectangle2D;
 
 public class Graphics2DAWT implements com.dhsdevelopments.androidjlatexmath.swingcompat.Graphics2D
 {
     private Graphics2D backend;
+    // the char of drawGlyph, a Graphics2D is used by one thread
+    private final char[] glyph = new char[1];
 
     public Graphics2DAWT( Graphics2D backend ) {
         this.backend = backend;
@@ -95,4 +99,34 @@ public class Graphics2DAWT implements com.dhsdevelopments.androidjlatexmath.swin
     public void draw( com.dhsdevelopments.androidjlatexmath.swingcompat.geom.Line2D.Float line ) {
         backend.draw( new Line2D.Float( line.x1, line.y1, line.x2, line.y2 ) );
     }
+
+    @Override
+    public void drawGlyphs( com.dhsdevelopments.androidjlatexmath.swingcompat.Font font, float size, char[] chars, int charOffset, float[] positions, int posOffset, int count ) {
+        // one glyph vector for the whole run, drawn in the space scaled by the size
+        java.awt.Font f = ((FontAWT)font).getBackend();
+        char[] run = chars;
+        if( charOffset != 0 || count != chars.length ) {
+            run = new char[count];
+            System.arraycopy( chars, charOffset, run, 0, count );
+        }
+        GlyphVector gv = f.createGlyphVector( backend.getFontRenderContext(), run );
+        for( int i = 0 ; i < count ; i++ ) {
+            gv.setGlyphPosition( i, new Point2D.Float( positions[posOffset + 2 * i] / size, positions[posOffset + 2 * i + 1] / size ) );
+        }
+        AffineTransform at = backend.getTransform();
+        backend.scale( size, size );
+        backend.drawGlyphVector( gv, 0, 0 );
+        backend.setTransform( at );
+    }
+
+    @Override
+    public void drawGlyph( com.dhsdevelopments.androidjlatexmath.swingcompat.Font font, float size, char c, float x, float y ) {
+        java.awt.Font f = ((FontAWT)font).getBackend();
+        glyph[0] = c;
+        GlyphVector gv = f.createGlyphVector( backend.getFontRenderContext(), glyph );
+        AffineTransform at = backend.getTransform();
+        backend.scale( size, size );
+        backend.drawGlyphVector( gv, x / size, y / size );
+        backend.setTransform( at );
+    }
 }
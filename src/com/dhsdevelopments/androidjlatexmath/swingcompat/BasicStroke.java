@@ -5,11 +5,35 @@ public class BasicStroke implements Stroke
     public static final int CAP_BUTT = 0;
     public static final int JOIN_MITER = 1;
 
-    public BasicStroke( float thickness, int cap, int join ) {
+    private final float width;
+    private final int cap;
+    private final int join;
+    private final float miterLimit;
 
+    public BasicStroke( float thickness, int cap, int join ) {
+        this( thickness, cap, join, 10f );
     }
 
     public BasicStroke( float thickness, int cap, int join, float miterLimit ) {
+        this.width = thickness;
+        this.cap = cap;
+        this.join = join;
+        this.miterLimit = miterLimit;
+    }
+
+    public float getLineWidth() {
+        return width;
+    }
+
+    public int getEndCap() {
+        return cap;
+    }
+
+    public int getLineJoin() {
+        return join;
+    }
 
+    public float getMiterLimit() {
+        return miterLimit;
     }
 }
@@ -36,4 +36,17 @@ public interface Graphics2D
     void fillArc( int x, int y, int w, int h, int startAngle, int widthAngle );
 
     void draw( Line2D.Float line );
+
+    /**
+     * Draws a run of glyphs in one call: the char chars[charOffset + i] is drawn with the
+     * font scaled by size at (positions[posOffset + 2 * i], positions[posOffset + 2 * i + 1])
+     * in the current user space. The transform is unchanged after the call.
+     */
+    void drawGlyphs( Font font, float size, char[] chars, int charOffset, float[] positions, int posOffset, int count );
+
+    /**
+     * Draws a single glyph: same as {@link #drawGlyphs} with one char drawn at (x, y), without
+     * any array to allocate.
+     */
+    void drawGlyph( Font font, float size, char c, float x, float y );
 }
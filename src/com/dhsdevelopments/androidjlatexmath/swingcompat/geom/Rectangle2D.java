@@ -7,7 +7,7 @@ public interface Rectangle2D
         public final float x;
         public final float y;
         public final float w;
-        private final float h;
+        public final float h;
 
         public Float( float x, float y, float w, float h ) {
             this.x = x;
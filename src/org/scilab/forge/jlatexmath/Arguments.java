@@ -0,0 +1,156 @@
+/* Arguments.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+import java.util.Arrays;
+
+/**
+ * The arguments and the options of a command, at the indices of the array returned by
+ * {@link TeXParser#getOptsArgs(int, int)}. A value is a view on the parsed text (its offset
+ * and its end) and is copied into a string only for a handler taking a String[]. A value
+ * built by the parser (a command given as argument) is kept as a string.
+ */
+final class Arguments {
+
+    private CharSequence text;
+    private int size;
+    // the value i is text[starts[i], ends[i]), or strings[i] when starts[i] is -1
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private String[] strings;
+
+    /**
+     * Remove all the values
+     * @param text the text where the values are
+     * @param size the number of values
+     */
+    void reset(CharSequence text, int size) {
+        this.text = text;
+        this.size = size;
+        if (starts.length < size) {
+            starts = new int[size];
+            ends = new int[size];
+            strings = null;
+        }
+        Arrays.fill(starts, 0, size, -1);
+        if (strings != null) {
+            Arrays.fill(strings, 0, size, null);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void set(int i, int start, int end) {
+        starts[i] = start;
+        ends[i] = end;
+        if (strings != null) {
+            strings[i] = null;
+        }
+    }
+
+    void set(int i, String s) {
+        if (strings == null) {
+            strings = new String[starts.length];
+        }
+        starts[i] = -1;
+        strings[i] = s;
+    }
+
+    boolean isSet(int i) {
+        return i < size && (starts[i] != -1 || (strings != null && strings[i] != null));
+    }
+
+    /**
+     * @return the length of the value i, 0 if it is missing
+     */
+    int length(int i) {
+        if (starts[i] != -1) {
+            return ends[i] - starts[i];
+        }
+
+        return strings == null || strings[i] == null ? 0 : strings[i].length();
+    }
+
+    /**
+     * Append the value i, nothing if it is missing
+     */
+    void appendTo(StringBuilder buf, int i) {
+        if (starts[i] != -1) {
+            buf.append(text, starts[i], ends[i]);
+        } else if (strings != null && strings[i] != null) {
+            buf.append(strings[i]);
+        }
+    }
+
+    /**
+     * @return a copy of the value i, null if it is missing
+     */
+    String get(int i) {
+        if (starts[i] != -1) {
+            return text.subSequence(starts[i], ends[i]).toString();
+        }
+
+        return strings == null ? null : strings[i];
+    }
+
+    /**
+     * @return the values copied in an array, the index 0 is left for the command name
+     */
+    String[] toArray() {
+        final String[] a = new String[size];
+        for (int i = 1; i < size; i++) {
+            a[i] = get(i);
+        }
+
+        return a;
+    }
+
+    /**
+     * Make the value i the first one, the values 1 to i - 1 are shifted
+     */
+    void moveToFirst(int i) {
+        final int start = starts[i];
+        final int end = ends[i];
+        final String s = strings == null ? null : strings[i];
+        for (int j = i; j > 1; j--) {
+            starts[j] = starts[j - 1];
+            ends[j] = ends[j - 1];
+            if (strings != null) {
+                strings[j] = strings[j - 1];
+            }
+        }
+        starts[1] = start;
+        ends[1] = end;
+        if (strings != null) {
+            strings[1] = s;
+        }
+    }
+}
@@ -57,6 +57,10 @@ public abstract class Atom implements Cloneable {
     public int type_limits = TeXConstants.SCRIPT_NOLIMITS;
 
     public int alignment = -1;
+
+    protected Atom() {
+        ParseLimits.atomCreated();
+    }
     
     /**
      * Convert this atom into a {@link Box}, using properties set by "parent"
@@ -0,0 +1,176 @@
+/* AtomCopier.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deep copy of an atom tree: each atom is cloned with {@link Atom#clone()} and the atoms,
+ * the lists, the arrays and the formulas (e.g. the {@link ArrayOfAtoms} of a matrix) it
+ * refers to are copied too. An atom referenced twice in the tree (e.g. a {@link MiddleAtom}
+ * which is also in the list of its {@link FencedAtom}) is copied once.
+ * <p>
+ * The layout writes in the atoms (the previous atom of a row, the box of a middle delimiter, ...),
+ * so a tree kept in a cache must be copied before being laid out.
+ */
+final class AtomCopier {
+
+    // the instance fields of each class, with the ones of its superclasses
+    private static final Map<Class<?>, Field[]> fields = new ConcurrentHashMap<Class<?>, Field[]>();
+
+    private final Map<Object, Object> copies = new IdentityHashMap<Object, Object>();
+
+    private AtomCopier() { }
+
+    /**
+     * @param a the root of a tree
+     * @return a copy of the tree, or null if it can't be copied
+     */
+    static Atom copy(Atom a) {
+        if (a == null) {
+            return null;
+        }
+        try {
+            return (Atom) new AtomCopier().copyValue(a);
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    private Object copyValue(Object v) throws IllegalAccessException {
+        if (v == null || v instanceof String || v instanceof Number || v instanceof Boolean) {
+            return v;
+        }
+
+        Object c = copies.get(v);
+        if (c != null) {
+            return c;
+        }
+
+        if (v instanceof Atom) {
+            return copyAtom((Atom) v);
+        }
+        if (v instanceof TeXFormula) {
+            return copyFormula((TeXFormula) v);
+        }
+        if (v instanceof LinkedList || v instanceof ArrayList) {
+            List<Object> l = v instanceof LinkedList ? new LinkedList<Object>() : new ArrayList<Object>(((List<?>) v).size());
+            copies.put(v, l);
+            for (Object o : (List<?>) v) {
+                l.add(copyValue(o));
+            }
+            return l;
+        }
+        if (v instanceof Object[]) {
+            Object[] arr = ((Object[]) v).clone();
+            copies.put(v, arr);
+            for (int i = 0; i < arr.length; i++) {
+                arr[i] = copyValue(arr[i]);
+            }
+            return arr;
+        }
+
+        // colors, fonts, boxes, ... are not modified by the layout
+        return v;
+    }
+
+    private Atom copyAtom(Atom a) throws IllegalAccessException {
+        Atom c = a.clone();
+        if (c == null) {
+            throw new IllegalAccessException("Cannot clone " + a.getClass().getName());
+        }
+        copies.put(a, c);
+        copyFields(a, c);
+        if (c instanceof RowAtom) {
+            ((RowAtom) c).invalidateBox();
+        }
+
+        return c;
+    }
+
+    private TeXFormula copyFormula(TeXFormula f) throws IllegalAccessException {
+        TeXFormula c;
+        try {
+            Constructor<? extends TeXFormula> cons = f.getClass().getDeclaredConstructor();
+            cons.setAccessible(true);
+            c = cons.newInstance();
+        } catch (NoSuchMethodException e) {
+            throw new IllegalAccessException("Cannot copy " + f.getClass().getName());
+        } catch (InstantiationException e) {
+            throw new IllegalAccessException("Cannot copy " + f.getClass().getName());
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            throw new IllegalAccessException("Cannot copy " + f.getClass().getName());
+        }
+        copies.put(f, c);
+        copyFields(f, c);
+        // the parser must fill the copy (e.g. when a dynamic atom sets its formula again)
+        c.parser = new TeXParser(f.parser != null && f.parser.getIsPartial(), "", c, false);
+
+        return c;
+    }
+
+    private void copyFields(Object src, Object dst) throws IllegalAccessException {
+        for (Field f : getFields(src.getClass())) {
+            Object v = f.get(src);
+            Object c = copyValue(v);
+            if (c != v) {
+                f.set(dst, c);
+            }
+        }
+    }
+
+    private static Field[] getFields(Class<?> cl) {
+        Field[] fs = fields.get(cl);
+        if (fs == null) {
+            List<Field> list = new ArrayList<Field>();
+            for (Class<?> c = cl; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field f : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(f.getModifiers()) && !f.getType().isPrimitive() && f.getType() != String.class) {
+                        f.setAccessible(true);
+                        list.add(f);
+                    }
+                }
+            }
+            fs = list.toArray(new Field[list.size()]);
+            fields.put(cl, fs);
+        }
+
+        return fs;
+    }
+}
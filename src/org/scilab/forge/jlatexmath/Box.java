@@ -36,7 +36,8 @@ import com.dhsdevelopments.androidjlatexmath.swingcompat.Graphics2D;
 import com.dhsdevelopments.androidjlatexmath.swingcompat.geom.Rectangle2D;
 import com.dhsdevelopments.androidjlatexmath.swingcompat.Stroke;
 import com.dhsdevelopments.androidjlatexmath.swingcompat.BasicStroke;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -49,8 +50,9 @@ import java.util.List;
  * Subclasses must implement the abstract {@link #draw(Graphics2D, float, float)} method
  * (that paints the box). <b> This implementation must start with calling the method
  * {@link #startDraw(Graphics2D, float, float)} and end with calling the method
- * {@link #endDraw(Graphics2D)} to set and restore the color's that must be used for
- * painting the box and to draw the background!</b> They must also implement the abstract
+ * {@link #endDraw(Graphics2D, Color)} to set and restore the color's that must be used for
+ * painting the box and to draw the background!</b> The drawing must not modify the box,
+ * so a box can be painted by several threads at the same time. They must also implement the abstract
  * {@link #getLastFontId()} method (the last font
  * that will be used when this box will be painted).
  */
@@ -72,8 +74,6 @@ public abstract class Box {
      */
     protected Color background;
 
-    private Color prevColor; // used temporarily in startDraw and endDraw
-
     /**
      * The width of this box, i.e. the value that will be used for further
      * calculations.
@@ -100,10 +100,13 @@ public abstract class Box {
 
     protected int type = -1;
 
+    // shared by all the boxes without children, most of them are leaves
+    private static final List<Box> NO_CHILDREN = Collections.emptyList();
+
     /**
-     * List of child boxes
+     * List of child boxes, allocated when the first child is added
      */
-    protected LinkedList<Box> children = new LinkedList<>();
+    protected List<Box> children = NO_CHILDREN;
     protected Box parent;
     protected Box elderParent;
     protected Color markForDEBUG;
@@ -114,6 +117,9 @@ public abstract class Box {
      * @param b the box to be inserted
      */
     public void add(Box b) {
+        if (children == NO_CHILDREN) {
+            children = new ArrayList<Box>();
+        }
         children.add(b);
         b.parent = this;
         b.elderParent = elderParent;
@@ -126,6 +132,9 @@ public abstract class Box {
      * @param b the box to be inserted
      */
     public void add(int pos, Box b) {
+        if (children == NO_CHILDREN) {
+            children = new ArrayList<Box>();
+        }
         children.add(pos, b);
         b.parent = this;
         b.elderParent = elderParent;
@@ -147,6 +156,7 @@ public abstract class Box {
      * @param bg the background color
      */
     protected Box(Color fg, Color bg) {
+        ParseLimits.boxCreated();
         foreground = fg;
         background = bg;
     }
@@ -260,16 +270,17 @@ public abstract class Box {
     public abstract int getLastFontId();
 
     /**
-     * Stores the old color setting, draws the background of the box (if not null)
+     * Gets the old color setting, draws the background of the box (if not null)
      * and sets the foreground color (if not null).
      *
      * @param g2 the graphics (2D) context
      * @param x the x-coordinate
      * @param y the y-coordinate
+     * @return the old color, to give to {@link #endDraw(Graphics2D, Color)}
      */
-    protected void startDraw(Graphics2D g2, float x, float y) {
+    protected Color startDraw(Graphics2D g2, float x, float y) {
         // old color
-        prevColor = g2.getColor();
+        Color prevColor = g2.getColor();
         if (background != null) { // draw background
             g2.setColor(background);
             //g2.fill(new Rectangle2D.Float(x, y - height, width, height + depth));
@@ -280,6 +291,8 @@ public abstract class Box {
             g2.setColor(foreground); // overriding foreground color
         }
         drawDebug(g2, x, y);
+
+        return prevColor;
     }
 
     protected void drawDebug(Graphics2D g2, float x, float y, boolean showDepth) {
@@ -292,6 +305,7 @@ public abstract class Box {
                 g2.setColor(c);
             }
             g2.setStroke(new BasicStroke((float) (Math.abs(1 / g2.getTransform().getScaleX())), BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER));
+            float width = this.width;
             if (width < 0) {
                 x += width;
                 width = -width;
@@ -326,8 +340,9 @@ public abstract class Box {
      * Restores the previous color setting.
      *
      * @param g2 the graphics (2D) context
+     * @param prevColor the color returned by {@link #startDraw(Graphics2D, float, float)}
      */
-    protected void endDraw(Graphics2D g2) {
+    protected void endDraw(Graphics2D g2, Color prevColor) {
         g2.setColor(prevColor);
     }
 }
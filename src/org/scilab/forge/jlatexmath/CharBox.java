@@ -29,12 +29,11 @@
 
 package org.scilab.forge.jlatexmath;
 
-import com.dhsdevelopments.androidjlatexmath.swingcompat.Font;
 import com.dhsdevelopments.androidjlatexmath.swingcompat.Graphics2D;
-import com.dhsdevelopments.androidjlatexmath.swingcompat.geom.AffineTransform;
 import com.dhsdevelopments.androidjlatexmath.swingcompat.geom.Rectangle2D;
 import com.dhsdevelopments.androidjlatexmath.swingcompat.Stroke;
 import com.dhsdevelopments.androidjlatexmath.swingcompat.BasicStroke;
+import java.util.List;
 
 /**
  * A box representing a single character.
@@ -43,8 +42,6 @@ public class CharBox extends Box {
 
     private final CharFont cf;
     private final float size;
-    
-    private final char[] arr = new char[1]; 
 
     /**
      * Create a new CharBox that will represent the character defined by the given
@@ -62,18 +59,46 @@ public class CharBox extends Box {
     
     public void draw(Graphics2D g2, float x, float y) {
 	drawDebug(g2, x, y);
-	AffineTransform at = g2.getTransform();
-        g2.translate(x, y);
-	Font font = FontInfo.getFont(cf.fontId);
-        if (size != 1) {
-	    g2.scale(size, size);
+	g2.drawGlyph(FontInfo.getFont(cf.fontId), size, cf.c, x, y);
+    }
+
+    /**
+     * @param b a box
+     * @return true if b is a CharBox which can be drawn in the same run as this one
+     */
+    boolean isSameRun(Box b) {
+	if (b.getClass() != CharBox.class) {
+	    return false;
 	}
-        if (g2.getFont() != font) {
-	    g2.setFont(font);
+	CharBox cb = (CharBox) b;
+	return cb.cf.fontId == cf.fontId && cb.size == size;
+    }
+
+    /**
+     * Draw the CharBoxes boxes[start..end[ of a horizontal box in a single run
+     * @param g2 the graphics
+     * @param boxes the children of the horizontal box
+     * @param start the index of the first CharBox
+     * @param end the index after the last CharBox, the boxes must be in the same run
+     * @param x the x-coordinate of the first box
+     * @param y the y-coordinate of the baseline of the horizontal box
+     * @return the x-coordinate after the last box
+     */
+    static float drawRun(Graphics2D g2, List<Box> boxes, int start, int end, float x, float y) {
+	final int n = end - start;
+	final char[] chars = new char[n];
+	final float[] pos = new float[2 * n];
+	CharBox first = (CharBox) boxes.get(start);
+	for (int i = 0; i < n; i++) {
+	    CharBox cb = (CharBox) boxes.get(start + i);
+	    chars[i] = cb.cf.c;
+	    pos[2 * i] = x;
+	    pos[2 * i + 1] = y + cb.shift;
+	    x += cb.width;
 	}
-	arr[0] = cf.c;
-	g2.drawChars(arr, 0, 1, 0, 0);
-	g2.setTransform(at);
+	g2.drawGlyphs(FontInfo.getFont(first.cf.fontId), first.size, chars, 0, pos, 0, n);
+
+	return x;
     }
     
     public int getLastFontId() {
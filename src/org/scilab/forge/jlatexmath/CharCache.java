@@ -0,0 +1,143 @@
+/* CharCache.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The Chars made by {@link DefaultTeXFont}, shared by all the fonts and all the threads.
+ * A Char only depends on the char code, the font id and the scale of its metrics, which
+ * are packed in a long key: a lookup doesn't allocate anything.
+ * <p>
+ * The table is open-addressed and never resized: when it is full it is replaced by an
+ * empty one, so its size is bounded.
+ */
+final class CharCache {
+
+    private static final int CAPACITY = 1 << 13;
+    private static final int MAX_ENTRIES = 3 * CAPACITY / 4;
+    private static final int MAX_PROBES = 8;
+
+    private static volatile Table table = new Table();
+
+    private CharCache() { }
+
+    /**
+     * @param c the char code
+     * @param fontId the font id
+     * @param scale the scale of the metrics
+     * @return the cached Char or null
+     */
+    static Char get(char c, int fontId, float scale) {
+        return table.get(key(c, fontId, scale));
+    }
+
+    /**
+     * Cache a Char
+     * @param ch the Char
+     * @param scale the scale of its metrics
+     * @return the cached Char, ch or an equal Char put by another thread
+     */
+    static Char put(Char ch, float scale) {
+        final Table t = table;
+        if (t.count.get() >= MAX_ENTRIES) {
+            table = new Table();
+            return ch;
+        }
+
+        return t.put(key(ch.getChar(), ch.getFontCode(), scale), ch);
+    }
+
+    /**
+     * Remove all the cached Chars, must be called when the fonts are modified
+     */
+    static void clear() {
+        table = new Table();
+    }
+
+    private static long key(char c, int fontId, float scale) {
+        return ((long) Float.floatToIntBits(scale) << 32) | ((long) (fontId & 0xFFFF) << 16) | c;
+    }
+
+    private static int index(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40) & (CAPACITY - 1);
+    }
+
+    private static final class Entry {
+
+        final long key;
+        final Char value;
+
+        Entry(long key, Char value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final class Table {
+
+        final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<Entry>(CAPACITY);
+        final AtomicInteger count = new AtomicInteger();
+
+        Char get(long key) {
+            int i = index(key);
+            for (int n = 0; n < MAX_PROBES; n++, i = (i + 1) & (CAPACITY - 1)) {
+                final Entry e = entries.get(i);
+                if (e == null) {
+                    return null;
+                }
+                if (e.key == key) {
+                    return e.value;
+                }
+            }
+
+            return null;
+        }
+
+        Char put(long key, Char value) {
+            final Entry entry = new Entry(key, value);
+            int i = index(key);
+            for (int n = 0; n < MAX_PROBES; n++, i = (i + 1) & (CAPACITY - 1)) {
+                if (entries.compareAndSet(i, null, entry)) {
+                    count.incrementAndGet();
+                    return value;
+                }
+                final Entry e = entries.get(i);
+                if (e.key == key) {
+                    return e.value;
+                }
+            }
+
+            // too many collisions: not cached
+            return value;
+        }
+    }
+}
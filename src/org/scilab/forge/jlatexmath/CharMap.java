@@ -0,0 +1,74 @@
+/* CharMap.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+/**
+ * A map from a char to a string, used for the character mappings of {@link TeXFormula}.
+ * The chars are split in 256 pages of 256 chars and a page is only allocated when one
+ * of its chars is mapped, so the map stays small since the mapped chars are few and
+ * grouped in some Unicode blocks.
+ */
+public final class CharMap {
+
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final String[][] pages = new String[1 << (16 - PAGE_BITS)][];
+
+    public CharMap() { }
+
+    /**
+     * @param c a char
+     * @return the string mapped to the char or null if there is none
+     */
+    public String get(char c) {
+        final String[] page = pages[c >>> PAGE_BITS];
+        return page == null ? null : page[c & PAGE_MASK];
+    }
+
+    /**
+     * Maps a string to a char
+     * @param c a char
+     * @param value the string or null to remove the mapping
+     */
+    public synchronized void put(char c, String value) {
+        String[] page = pages[c >>> PAGE_BITS];
+        if (page == null) {
+            if (value == null) {
+                return;
+            }
+            page = new String[PAGE_SIZE];
+            page[c & PAGE_MASK] = value;
+            pages[c >>> PAGE_BITS] = page;
+        } else {
+            page[c & PAGE_MASK] = value;
+        }
+    }
+}
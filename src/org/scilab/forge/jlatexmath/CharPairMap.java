@@ -0,0 +1,132 @@
+/* CharPairMap.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An open-addressed map from a couple of chars to an int, used by {@link FontInfo}
+ * for the kerns and the ligatures. A lookup doesn't allocate anything.
+ * The map is filled when the font is parsed and only read after.
+ */
+final class CharPairMap {
+
+    // a key is made of two chars stored in the low 32 bits of a long so it is never negative
+    private static final long FREE = -1L;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    CharPairMap() {
+        this(16);
+    }
+
+    private CharPairMap(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE);
+    }
+
+    private static long key(char left, char right) {
+        return ((long) left << 16) | right;
+    }
+
+    private int slot(long key) {
+        final int mask = keys.length - 1;
+        int i = ((int) key * 0x9E3779B9) >>> 16 & mask;
+        while (keys[i] != FREE && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+
+        return i;
+    }
+
+    void put(char left, char right, int value) {
+        if (2 * (size + 1) > keys.length) {
+            rehash(2 * keys.length);
+        }
+        final long key = key(left, right);
+        final int i = slot(key);
+        if (keys[i] == FREE) {
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+    }
+
+    /**
+     * @return the index of the couple, to give to {@link #valueAt(int)}, or -1 if the
+     * couple is not in the map
+     */
+    int indexOf(char left, char right) {
+        final int i = slot(key(left, right));
+        return keys[i] == FREE ? -1 : i;
+    }
+
+    int valueAt(int index) {
+        return values[index];
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                out.writeInt((int) keys[i]);
+                out.writeInt(values[i]);
+            }
+        }
+    }
+
+    void read(DataInput in) throws IOException {
+        final int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            final int key = in.readInt();
+            put((char) (key >>> 16), (char) key, in.readInt());
+        }
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = keys;
+        final int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                final int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
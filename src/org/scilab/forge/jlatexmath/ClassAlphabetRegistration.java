@@ -0,0 +1,82 @@
+/* ClassAlphabetRegistration.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+/**
+ * Registers an alphabet by the name of its registration class: the class is loaded
+ * only when a character of one of the blocks is met for the first time.
+ */
+public class ClassAlphabetRegistration implements AlphabetRegistration {
+
+    private final String className;
+    private final Character.UnicodeBlock[] blocks;
+    // loaded by the first thread meeting a char of the alphabet
+    private volatile AlphabetRegistration pack = null;
+
+    private ClassAlphabetRegistration(String className, Character.UnicodeBlock[] blocks) {
+	this.className = className;
+	this.blocks = blocks;
+    }
+
+    public static void register(String className, Character.UnicodeBlock[] blocks) {
+	DefaultTeXFont.registerAlphabet(new ClassAlphabetRegistration(className, blocks));
+    }
+
+    public Character.UnicodeBlock[] getUnicodeBlock() {
+	return blocks;
+    }
+
+    /**
+     * @return the package or null if the class is not in the class path (the alphabet
+     * is an optional jar)
+     */
+    public Object getPackage() throws AlphabetRegistrationException {
+	AlphabetRegistration p = pack;
+	if (p == null) {
+	    synchronized (this) {
+		p = pack;
+		if (p == null) {
+		    try {
+			p = (AlphabetRegistration) Class.forName(className).getDeclaredConstructor().newInstance();
+		    } catch (ClassNotFoundException e) {
+			return null;
+		    } catch (Exception e) {
+			throw new AlphabetRegistrationException("Problem in loading the class " + className + " :\n" + e.getMessage());
+		    }
+		    pack = p;
+		}
+	    }
+	}
+	return p.getPackage();
+    }
+
+    public String getTeXFontFileName() {
+	return pack.getTeXFontFileName();
+    }
+}
@@ -30,8 +30,8 @@
 package org.scilab.forge.jlatexmath;
 
 import com.dhsdevelopments.androidjlatexmath.swingcompat.Color;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.StringTokenizer;
 
 /**
@@ -39,7 +39,7 @@ import java.util.StringTokenizer;
  */
 public class ColorAtom extends Atom implements Row {
 
-    public static Map<String,Color> Colors = new HashMap<String,Color>();
+    public static Map<String,Color> Colors = new ConcurrentHashMap<String,Color>();
 
     // background color
     private final Color background;
@@ -106,6 +106,17 @@ public class ColorAtom extends Atom implements Row {
     }
 
     public static Color getColor(String s) {
+        return getColor(s, MacroScope.GLOBAL);
+    }
+
+    /**
+     * Same as {@link #getColor(String)} but the named colors are looked up in the given
+     * scope first, see {@link MacroScope#getColor(String)}.
+     * @param s the color
+     * @param scope the scope of the parser
+     * @return the color
+     */
+    public static Color getColor(String s, MacroScope scope) {
         if (s != null && s.length() != 0) {
             s = s.trim();
             if (s.charAt(0) == '#') {
@@ -158,7 +169,7 @@ public class ColorAtom extends Atom implements Row {
                 }
             }
 
-            Color c = Colors.get(s.toLowerCase());
+            Color c = scope.getColor(s.toLowerCase());
             if (c != null) {
                 return c;
             } else {
@@ -0,0 +1,107 @@
+/* CommandTable.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The resolution of the name of a command of the global scope: a macro, a predefined
+ * formula or a symbol (in this order of priority). The resolutions are kept in one map,
+ * so a known command is found in a single lookup and an unknown one doesn't throw any
+ * exception. A resolution is made again when the global tables have changed
+ * (see {@link MacroScope#getGlobalVersion()}).
+ */
+final class CommandTable {
+
+    static final int MACRO = 0;
+    static final int FORMULA = 1;
+    static final int SYMBOL = 2;
+
+    static final class Entry {
+
+        final int kind;
+        final MacroInfo macro;
+        final SymbolAtom symbol;
+        final int version;
+
+        private Entry(int kind, MacroInfo macro, SymbolAtom symbol, int version) {
+            this.kind = kind;
+            this.macro = macro;
+            this.symbol = symbol;
+            this.version = version;
+        }
+    }
+
+    // the unknown names are not kept, so the size is bounded by the number of commands
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>(1024);
+
+    private CommandTable() { }
+
+    /**
+     * @param name the name of a command
+     * @return the resolution of the command or null if it is unknown
+     */
+    static Entry get(String name) {
+        // read the version first: if the tables change during the resolution, the
+        // entry is already stale
+        final int version = MacroScope.getGlobalVersion();
+        Entry e = entries.get(name);
+        if (e != null && e.version == version) {
+            return e;
+        }
+
+        e = resolve(name, version);
+        if (e != null) {
+            entries.put(name, e);
+        } else {
+            entries.remove(name);
+        }
+
+        return e;
+    }
+
+    private static Entry resolve(String name, int version) {
+        final MacroInfo mac = MacroInfo.Commands.get(name);
+        if (mac != null) {
+            return new Entry(MACRO, mac, null, version);
+        }
+
+        if (TeXFormula.predefinedTeXFormulas.containsKey(name) || TeXFormula.predefinedTeXFormulasAsString.containsKey(name)) {
+            return new Entry(FORMULA, null, null, version);
+        }
+
+        final SymbolAtom sym = SymbolAtom.symbols.get(name);
+        if (sym != null) {
+            return new Entry(SYMBOL, null, sym, version);
+        }
+
+        return null;
+    }
+}
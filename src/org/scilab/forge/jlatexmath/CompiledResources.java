@@ -0,0 +1,775 @@
+/* CompiledResources.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The resources usually parsed from the XML files (DefaultTeXFont.xml and the font metrics
+ * it includes, TeXSymbols.xml, GlueSettings.xml and TeXFormulaSettings.xml) compiled at build
+ * time in a compact binary form. The file is read with a single buffered read and each
+ * section is decoded when the class which needs it is initialized.
+ * If the file is missing, or if it has been written by an other version of this class, the
+ * XML files are parsed as before. The XML files stay the way to add or override resources
+ * (see {@link DefaultTeXFont#addTeXFontDescription(String)}, {@link SymbolAtom#addSymbolAtom(String)}
+ * or {@link TeXFormula#addSymbolMappings(String)}).
+ *
+ * The file is made by the build with:
+ * <pre>java org.scilab.forge.jlatexmath.CompiledResources path/to/CompiledResources.bin</pre>
+ * The same format is used for a snapshot of the registries of a running application, see
+ * {@link #writeSnapshot(OutputStream)}.
+ */
+public final class CompiledResources {
+
+    public static final String RESOURCE_NAME = "CompiledResources.bin";
+
+    private static final int MAGIC = 0x4A4C4D52; // JLMR
+    private static final int VERSION = 3;
+
+    static final int FONTS = 0;
+    static final int PARAMETERS = 1;
+    static final int GENERAL_SETTINGS = 2;
+    static final int TEXT_STYLE_MAPPINGS = 3;
+    static final int DEFAULT_TEXT_STYLE_MAPPINGS = 4;
+    static final int SYMBOL_MAPPINGS = 5;
+    static final int SYMBOLS = 6;
+    static final int GLUE = 7;
+    static final int CHAR_TO_SYMBOL = 8;
+    static final int CHAR_TO_FORMULA = 9;
+    static final int MACROS = 10;
+    static final int FORMULAS = 11;
+    static final int ALPHABETS = 12;
+    private static final int NUMBER_OF_SECTIONS = 13;
+
+    private static boolean enabled = true;
+    private static boolean loaded;
+    private static CompiledResources instance;
+
+    private final byte[] data;
+    private final int[] offsets;
+
+    private CompiledResources(byte[] data, int[] offsets) {
+        this.data = data;
+        this.offsets = offsets;
+    }
+
+    /**
+     * @return the compiled resources or null if they are not available, in this case the
+     * XML files must be parsed
+     */
+    static synchronized CompiledResources get() {
+        if (!loaded) {
+            loaded = true;
+            if (enabled) {
+                instance = load(CompiledResources.class.getResourceAsStream(RESOURCE_NAME));
+                if (instance != null) {
+                    try {
+                        instance.checkFonts();
+                    } catch (ResourceParseException e) {
+                        System.err.println("Warning: JLaTeXMath: " + e.getMessage() + ", the XML files are used");
+                        instance = null;
+                    }
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Don't use the compiled resources anymore: the initializers which have not read them
+     * yet parse the XML files. This is called when a section cannot be read, the other
+     * sections are checked by {@link #checkFonts()} before any of them is read.
+     */
+    static synchronized void disable() {
+        instance = null;
+        loaded = true;
+    }
+
+    /**
+     * Reads the fonts section without registering anything, so that the classes containing
+     * the font files are known to be there before the initializers read the sections: the
+     * fonts, the symbols, the glue and the formulas are then all read from the same resources.
+     */
+    private void checkFonts() throws ResourceParseException {
+        try {
+            DataInputStream in = section(FONTS);
+            final int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                in.readUTF();
+                FontInfo.skip(in);
+            }
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    private static CompiledResources load(InputStream in) {
+        if (in == null) {
+            return null;
+        }
+        try {
+            final byte[] data = readFully(in);
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(data));
+            if (header.readInt() != MAGIC || header.readInt() != VERSION || header.readInt() != NUMBER_OF_SECTIONS) {
+                return null;
+            }
+            final int[] offsets = new int[NUMBER_OF_SECTIONS + 1];
+            for (int i = 0; i <= NUMBER_OF_SECTIONS; i++) {
+                offsets[i] = header.readInt();
+            }
+            if (offsets[NUMBER_OF_SECTIONS] != data.length) {
+                return null;
+            }
+
+            return new CompiledResources(data, offsets);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) { }
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        byte[] buf = new byte[1 << 16];
+        int len = 0;
+        int n;
+        while ((n = in.read(buf, len, buf.length - len)) != -1) {
+            len += n;
+            if (len == buf.length) {
+                byte[] b = new byte[2 * buf.length];
+                System.arraycopy(buf, 0, b, 0, len);
+                buf = b;
+            }
+        }
+        if (len == buf.length) {
+            return buf;
+        }
+        byte[] b = new byte[len];
+        System.arraycopy(buf, 0, b, 0, len);
+        return b;
+    }
+
+    private DataInputStream section(int section) {
+        return new DataInputStream(new ByteArrayInputStream(data, offsets[section], offsets[section + 1] - offsets[section]));
+    }
+
+    private static ResourceParseException error(IOException e) {
+        return new ResourceParseException(RESOURCE_NAME + ": " + e.getMessage(), e);
+    }
+
+    /**
+     * Same as {@link DefaultTeXFontParser#parseFontDescriptions(FontInfo[])}: the ids of the
+     * fonts are registered in the parser.
+     */
+    FontInfo[] readFontDescriptions() throws ResourceParseException {
+        try {
+            DataInputStream in = section(FONTS);
+            final int n = in.readInt();
+            FontInfo[] fi = new FontInfo[n];
+            for (int i = 0; i < n; i++) {
+                final String fontId = in.readUTF();
+                if (DefaultTeXFontParser.Font_ID.indexOf(fontId) >= 0) {
+                    throw new FontAlreadyLoadedException("Font " + fontId + " is already loaded !");
+                }
+                DefaultTeXFontParser.Font_ID.add(fontId);
+                fi[i] = FontInfo.read(in, DefaultTeXFontParser.Font_ID.indexOf(fontId));
+            }
+            for (FontInfo info : fi) {
+                info.setBoldId(DefaultTeXFontParser.Font_ID.indexOf(info.boldVersion));
+                info.setRomanId(DefaultTeXFontParser.Font_ID.indexOf(info.romanVersion));
+                info.setSsId(DefaultTeXFontParser.Font_ID.indexOf(info.ssVersion));
+                info.setTtId(DefaultTeXFontParser.Font_ID.indexOf(info.ttVersion));
+                info.setItId(DefaultTeXFontParser.Font_ID.indexOf(info.itVersion));
+            }
+
+            return fi;
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    Map<String, Float> readParameters() throws ResourceParseException {
+        try {
+            DataInputStream in = section(PARAMETERS);
+            final int n = in.readInt();
+            Map<String, Float> res = new HashMap<String, Float>();
+            for (int i = 0; i < n; i++) {
+                final String name = in.readUTF();
+                res.put(name, in.readFloat());
+            }
+            return res;
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    Map<String, Number> readGeneralSettings() throws ResourceParseException {
+        try {
+            DataInputStream in = section(GENERAL_SETTINGS);
+            Map<String, Number> res = new HashMap<String, Number>();
+            res.put(DefaultTeXFontParser.MUFONTID_ATTR, in.readInt());
+            res.put(DefaultTeXFontParser.SPACEFONTID_ATTR, in.readInt());
+            res.put("scriptfactor", in.readFloat());
+            res.put("scriptscriptfactor", in.readFloat());
+            return res;
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    Map<String, CharFont[]> readTextStyleMappings() throws ResourceParseException {
+        try {
+            DataInputStream in = section(TEXT_STYLE_MAPPINGS);
+            final int n = in.readInt();
+            Map<String, CharFont[]> res = new HashMap<String, CharFont[]>();
+            for (int i = 0; i < n; i++) {
+                final String name = in.readUTF();
+                CharFont[] charFonts = new CharFont[4];
+                for (int j = 0; j < charFonts.length; j++) {
+                    charFonts[j] = readCharFont(in);
+                }
+                res.put(name, charFonts);
+            }
+            return res;
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    String[] readDefaultTextStyleMappings() throws ResourceParseException {
+        try {
+            DataInputStream in = section(DEFAULT_TEXT_STYLE_MAPPINGS);
+            String[] res = new String[4];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = in.readBoolean() ? in.readUTF() : null;
+            }
+            return res;
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    Map<String, CharFont> readSymbolMappings() throws ResourceParseException {
+        try {
+            DataInputStream in = section(SYMBOL_MAPPINGS);
+            final int n = in.readInt();
+            Map<String, CharFont> res = new HashMap<String, CharFont>();
+            for (int i = 0; i < n; i++) {
+                final String name = in.readUTF();
+                res.put(name, readCharFont(in));
+            }
+            return res;
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    /**
+     * Same as {@link TeXSymbolParser#readSymbols()}
+     */
+    Map<String, SymbolAtom> readSymbols() throws ResourceParseException {
+        try {
+            DataInputStream in = section(SYMBOLS);
+            final int n = in.readInt();
+            Map<String, SymbolAtom> res = new HashMap<String, SymbolAtom>();
+            for (int i = 0; i < n; i++) {
+                final String name = in.readUTF();
+                final int type = in.readByte();
+                res.put(name, new SymbolAtom(name, type, in.readBoolean()));
+            }
+            return res;
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    /**
+     * Same as {@link GlueSettingsParser#getGlueTypes()}
+     */
+    Glue[] readGlueTypes() throws ResourceParseException {
+        try {
+            DataInputStream in = section(GLUE);
+            Glue[] res = new Glue[in.readInt()];
+            for (int i = 0; i < res.length; i++) {
+                final String name = in.readUTF();
+                final float space = in.readFloat();
+                final float stretch = in.readFloat();
+                res[i] = new Glue(space, stretch, in.readFloat(), name);
+            }
+            return res;
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    /**
+     * Same as {@link GlueSettingsParser#createGlueTable()}
+     */
+    int[][][] readGlueTable() throws ResourceParseException {
+        try {
+            DataInputStream in = section(GLUE);
+            // skip the glue types
+            final int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                in.readUTF();
+                in.skipBytes(12);
+            }
+            int[][][] table = new int[in.readInt()][in.readInt()][in.readInt()];
+            for (int[][] t : table) {
+                for (int[] u : t) {
+                    for (int k = 0; k < u.length; k++) {
+                        u[k] = in.readByte();
+                    }
+                }
+            }
+            return table;
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    /**
+     * Same as {@link TeXFormulaSettingsParser#parseSymbolMappings(CharMap, CharMap)}
+     */
+    void readCharToSymbolMappings(CharMap mappings, CharMap textMappings) throws ResourceParseException {
+        readCharMappings(CHAR_TO_SYMBOL, mappings, textMappings);
+    }
+
+    /**
+     * Same as {@link TeXFormulaSettingsParser#parseSymbolToFormulaMappings(CharMap, CharMap)}
+     */
+    void readCharToFormulaMappings(CharMap mappings, CharMap textMappings) throws ResourceParseException {
+        readCharMappings(CHAR_TO_FORMULA, mappings, textMappings);
+    }
+
+    private void readCharMappings(int section, CharMap mappings, CharMap textMappings) throws ResourceParseException {
+        try {
+            DataInputStream in = section(section);
+            final int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                final char c = in.readChar();
+                mappings.put(c, in.readUTF());
+                if (in.readBoolean()) {
+                    final String text = in.readUTF();
+                    if (textMappings != null) {
+                        textMappings.put(c, text);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    /**
+     * Defines again the macros of the snapshot in the global scope
+     */
+    void readMacros() throws ResourceParseException {
+        try {
+            DataInputStream in = section(MACROS);
+            final int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                final String name = in.readUTF();
+                final String code = in.readUTF();
+                final int nbArgs = in.readInt();
+                final String def = in.readBoolean() ? in.readUTF() : null;
+                NewCommandMacro.define(MacroScope.GLOBAL, name, code, nbArgs, def);
+            }
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    void readFormulas(Map<String, String> formulas) throws ResourceParseException {
+        try {
+            DataInputStream in = section(FORMULAS);
+            final int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                final String name = in.readUTF();
+                formulas.put(name, in.readUTF());
+            }
+        } catch (IOException e) {
+            throw error(e);
+        }
+    }
+
+    /**
+     * @return the alphabets whose fonts, symbols and mappings are in the snapshot
+     */
+    List<Character.UnicodeBlock> readAlphabets() throws ResourceParseException {
+        try {
+            DataInputStream in = section(ALPHABETS);
+            final int n = in.readInt();
+            List<Character.UnicodeBlock> res = new ArrayList<Character.UnicodeBlock>(n);
+            for (int i = 0; i < n; i++) {
+                res.add(Character.UnicodeBlock.forName(in.readUTF()));
+            }
+            return res;
+        } catch (IOException e) {
+            throw error(e);
+        } catch (IllegalArgumentException e) {
+            throw new ResourceParseException(RESOURCE_NAME + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static CharFont readCharFont(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        final char c = in.readChar();
+        final int fontId = in.readInt();
+        return new CharFont(c, fontId, in.readInt());
+    }
+
+    private static void writeCharFont(DataOutputStream out, CharFont cf) throws IOException {
+        out.writeBoolean(cf != null);
+        if (cf != null) {
+            out.writeChar(cf.c);
+            out.writeInt(cf.fontId);
+            out.writeInt(cf.boldFontId);
+        }
+    }
+
+    /**
+     * Parses the XML resources and writes them in the binary form.
+     * @param out the output
+     */
+    public static void write(OutputStream out) throws IOException {
+        // the font ids are registered by the parser, so the fonts must be parsed first
+        final DefaultTeXFontParser parser = new DefaultTeXFontParser();
+        final FontInfo[] fontInfo = parser.parseFontDescriptions(new FontInfo[0]);
+        final GlueSettingsParser glueParser = new GlueSettingsParser();
+
+        // the text mappings are shared by the two kinds of mappings: the ones for the
+        // chars mapped to formulas are parsed after and override the ones for the symbols
+        final TeXFormulaSettingsParser settingsParser = new TeXFormulaSettingsParser();
+        final CharMap symbolMappings = new CharMap();
+        final CharMap symbolTextMappings = new CharMap();
+        settingsParser.parseSymbolMappings(symbolMappings, symbolTextMappings);
+        final CharMap formulaMappings = new CharMap();
+        final CharMap formulaTextMappings = new CharMap();
+        settingsParser.parseSymbolToFormulaMappings(formulaMappings, formulaTextMappings);
+
+        final Sections sections = new Sections();
+        sections.writeFonts(fontInfo);
+        sections.writeParameters(parser.parseParameters());
+        sections.writeGeneralSettings(parser.parseGeneralSettings());
+        sections.writeTextStyleMappings(parser.parseTextStyleMappings());
+        sections.writeDefaultTextStyleMappings(parser.parseDefaultTextStyleMappings());
+        sections.writeSymbolMappings(parser.parseSymbolMappings());
+        sections.writeSymbols(new TeXSymbolParser().readSymbols());
+        sections.writeGlue(glueParser.getGlueTypes(), glueParser.createGlueTable());
+        sections.writeCharMappings(CHAR_TO_SYMBOL, symbolMappings, symbolTextMappings);
+        sections.writeCharMappings(CHAR_TO_FORMULA, formulaMappings, formulaTextMappings);
+        sections.writeTo(out);
+    }
+
+    /**
+     * Writes a snapshot of the current state of the registries: the fonts (with the ones
+     * of the loaded alphabets), the symbols, the glue, the character mappings, the macros
+     * defined with <code>\newcommand</code> or <code>\newenvironment</code> and the
+     * predefined formulas given as strings.
+     * An application which registers its own fonts, symbols or macros at startup can
+     * write a snapshot once and give it to {@link #useSnapshot(InputStream)} in the next
+     * runs: the XML files are not parsed again.
+     * The commands bound to a Java method and the predefined formulas built from an XML file
+     * are not in the snapshot, they must be registered again.
+     * @param out the output
+     */
+    public static void writeSnapshot(OutputStream out) throws IOException {
+        final CharMap formulaTextMappings = new CharMap();
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            if (TeXFormula.symbolFormulaMappings.get((char) c) != null) {
+                formulaTextMappings.put((char) c, TeXFormula.symbolTextMappings.get((char) c));
+            }
+        }
+
+        final Sections sections = new Sections();
+        sections.writeFonts(DefaultTeXFont.getFontInfos());
+        sections.writeParameters(DefaultTeXFont.getParameters());
+        sections.writeGeneralSettings(DefaultTeXFont.getGeneralSettings());
+        sections.writeTextStyleMappings(DefaultTeXFont.getTextStyleMappings());
+        sections.writeDefaultTextStyleMappings(DefaultTeXFont.getDefaultTextStyleMappings());
+        sections.writeSymbolMappings(DefaultTeXFont.getSymbolMappings());
+        sections.writeSymbols(SymbolAtom.symbols);
+        sections.writeGlue(Glue.getGlueTypes(), Glue.getGlueTable());
+        sections.writeCharMappings(CHAR_TO_SYMBOL, TeXFormula.symbolMappings, TeXFormula.symbolTextMappings);
+        sections.writeCharMappings(CHAR_TO_FORMULA, TeXFormula.symbolFormulaMappings, formulaTextMappings);
+        sections.writeMacros(MacroInfo.Commands);
+        sections.writeFormulas(TeXFormula.predefinedTeXFormulasAsString);
+        sections.writeAlphabets(DefaultTeXFont.loadedAlphabets);
+        sections.writeTo(out);
+    }
+
+    /**
+     * Use a snapshot written by {@link #writeSnapshot(OutputStream)} instead of the compiled
+     * resources. This must be called before any formula is created.
+     * @param in the input
+     * @throws IllegalStateException if the resources are already loaded
+     * @throws ResourceParseException if the snapshot is invalid or if the class containing
+     * the file of one of its fonts cannot be found
+     */
+    public static synchronized void useSnapshot(InputStream in) throws ResourceParseException {
+        if (loaded) {
+            throw new IllegalStateException("The resources are already loaded");
+        }
+        CompiledResources res = load(in);
+        if (res == null) {
+            throw new ResourceParseException("Invalid snapshot: it has not been written by this version of JLaTeXMath");
+        }
+        res.checkFonts();
+        instance = res;
+        loaded = true;
+    }
+
+    /**
+     * The sections being written
+     */
+    private static final class Sections {
+
+        private final ByteArrayOutputStream[] sections = new ByteArrayOutputStream[NUMBER_OF_SECTIONS];
+        private final DataOutputStream[] outs = new DataOutputStream[NUMBER_OF_SECTIONS];
+
+        Sections() throws IOException {
+            for (int i = 0; i < NUMBER_OF_SECTIONS; i++) {
+                sections[i] = new ByteArrayOutputStream();
+                outs[i] = new DataOutputStream(sections[i]);
+            }
+            // the sections which are only in a snapshot are empty
+            outs[MACROS].writeInt(0);
+            outs[FORMULAS].writeInt(0);
+            outs[ALPHABETS].writeInt(0);
+        }
+
+        void writeFonts(FontInfo[] fontInfo) throws IOException {
+            DataOutputStream o = outs[FONTS];
+            o.writeInt(fontInfo.length);
+            for (FontInfo info : fontInfo) {
+                o.writeUTF(DefaultTeXFontParser.Font_ID.get(info.getId()));
+                info.write(o);
+            }
+        }
+
+        void writeParameters(Map<String, Float> parameters) throws IOException {
+            DataOutputStream o = outs[PARAMETERS];
+            o.writeInt(parameters.size());
+            for (Map.Entry<String, Float> e : parameters.entrySet()) {
+                o.writeUTF(e.getKey());
+                o.writeFloat(e.getValue());
+            }
+        }
+
+        void writeGeneralSettings(Map<String, Number> settings) throws IOException {
+            DataOutputStream o = outs[GENERAL_SETTINGS];
+            o.writeInt(settings.get(DefaultTeXFontParser.MUFONTID_ATTR).intValue());
+            o.writeInt(settings.get(DefaultTeXFontParser.SPACEFONTID_ATTR).intValue());
+            o.writeFloat(settings.get("scriptfactor").floatValue());
+            o.writeFloat(settings.get("scriptscriptfactor").floatValue());
+        }
+
+        void writeTextStyleMappings(Map<String, CharFont[]> textStyles) throws IOException {
+            DataOutputStream o = outs[TEXT_STYLE_MAPPINGS];
+            o.writeInt(textStyles.size());
+            for (Map.Entry<String, CharFont[]> e : textStyles.entrySet()) {
+                o.writeUTF(e.getKey());
+                for (CharFont cf : e.getValue()) {
+                    writeCharFont(o, cf);
+                }
+            }
+        }
+
+        void writeDefaultTextStyleMappings(String[] styles) throws IOException {
+            DataOutputStream o = outs[DEFAULT_TEXT_STYLE_MAPPINGS];
+            for (String style : styles) {
+                o.writeBoolean(style != null);
+                if (style != null) {
+                    o.writeUTF(style);
+                }
+            }
+        }
+
+        void writeSymbolMappings(Map<String, CharFont> symbolMappings) throws IOException {
+            DataOutputStream o = outs[SYMBOL_MAPPINGS];
+            o.writeInt(symbolMappings.size());
+            for (Map.Entry<String, CharFont> e : symbolMappings.entrySet()) {
+                o.writeUTF(e.getKey());
+                writeCharFont(o, e.getValue());
+            }
+        }
+
+        void writeSymbols(Map<String, SymbolAtom> symbols) throws IOException {
+            DataOutputStream o = outs[SYMBOLS];
+            o.writeInt(symbols.size());
+            for (Map.Entry<String, SymbolAtom> e : symbols.entrySet()) {
+                o.writeUTF(e.getKey());
+                o.writeByte(e.getValue().type);
+                o.writeBoolean(e.getValue().isDelimiter());
+            }
+        }
+
+        void writeGlue(Glue[] glueTypes, int[][][] glueTable) throws IOException {
+            DataOutputStream o = outs[GLUE];
+            o.writeInt(glueTypes.length);
+            for (Glue glue : glueTypes) {
+                o.writeUTF(glue.getName());
+                o.writeFloat(glue.getSpace());
+                o.writeFloat(glue.getStretch());
+                o.writeFloat(glue.getShrink());
+            }
+            o.writeInt(glueTable.length);
+            o.writeInt(glueTable[0].length);
+            o.writeInt(glueTable[0][0].length);
+            for (int[][] t : glueTable) {
+                for (int[] u : t) {
+                    for (int v : u) {
+                        o.writeByte(v);
+                    }
+                }
+            }
+        }
+
+        void writeCharMappings(int section, CharMap mappings, CharMap textMappings) throws IOException {
+            DataOutputStream o = outs[section];
+            int n = 0;
+            for (int c = 0; c <= Character.MAX_VALUE; c++) {
+                if (mappings.get((char) c) != null) {
+                    n++;
+                }
+            }
+            o.writeInt(n);
+            for (int c = 0; c <= Character.MAX_VALUE; c++) {
+                final String mapping = mappings.get((char) c);
+                if (mapping != null) {
+                    final String text = textMappings.get((char) c);
+                    o.writeChar(c);
+                    o.writeUTF(mapping);
+                    o.writeBoolean(text != null);
+                    if (text != null) {
+                        o.writeUTF(text);
+                    }
+                }
+            }
+        }
+
+        void writeMacros(Map<String, MacroInfo> commands) throws IOException {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream o = new DataOutputStream(buf);
+            int n = 0;
+            for (Map.Entry<String, MacroInfo> e : commands.entrySet()) {
+                final MacroInfo mac = e.getValue();
+                if (mac.handler instanceof NewCommandMacro.Handler) {
+                    final NewCommandMacro.Handler handler = (NewCommandMacro.Handler) mac.handler;
+                    o.writeUTF(e.getKey());
+                    o.writeUTF(handler.code);
+                    o.writeInt(mac.nbArgs);
+                    o.writeBoolean(handler.def != null);
+                    if (handler.def != null) {
+                        o.writeUTF(handler.def);
+                    }
+                    n++;
+                }
+            }
+            o.flush();
+            sections[MACROS].reset();
+            outs[MACROS].writeInt(n);
+            buf.writeTo(outs[MACROS]);
+        }
+
+        void writeFormulas(Map<String, String> formulas) throws IOException {
+            DataOutputStream o = outs[FORMULAS];
+            sections[FORMULAS].reset();
+            o.writeInt(formulas.size());
+            for (Map.Entry<String, String> e : formulas.entrySet()) {
+                o.writeUTF(e.getKey());
+                o.writeUTF(e.getValue());
+            }
+        }
+
+        void writeAlphabets(List<Character.UnicodeBlock> alphabets) throws IOException {
+            DataOutputStream o = outs[ALPHABETS];
+            sections[ALPHABETS].reset();
+            o.writeInt(alphabets.size());
+            for (Character.UnicodeBlock block : alphabets) {
+                o.writeUTF(block.toString());
+            }
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            DataOutputStream dout = new DataOutputStream(out);
+            dout.writeInt(MAGIC);
+            dout.writeInt(VERSION);
+            dout.writeInt(NUMBER_OF_SECTIONS);
+            int offset = 4 * (3 + NUMBER_OF_SECTIONS + 1);
+            for (int i = 0; i < NUMBER_OF_SECTIONS; i++) {
+                outs[i].flush();
+                dout.writeInt(offset);
+                offset += sections[i].size();
+            }
+            dout.writeInt(offset);
+            for (int i = 0; i < NUMBER_OF_SECTIONS; i++) {
+                sections[i].writeTo(dout);
+            }
+            dout.flush();
+        }
+    }
+
+    /**
+     * Compiles the XML resources in the file given as argument.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java " + CompiledResources.class.getName() + " <output file>");
+            System.exit(1);
+        }
+
+        synchronized (CompiledResources.class) {
+            // the symbols are built by the parser, the SymbolAtom class must not use an old file
+            enabled = false;
+        }
+        OutputStream out = new FileOutputStream(args[0]);
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -30,10 +30,11 @@
 package org.scilab.forge.jlatexmath;
 
 import com.dhsdevelopments.androidjlatexmath.swingcompat.Font;
+import java.util.Collections;
 import java.util.Map;
-import java.util.HashMap;
 import java.util.List;
-import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.FileNotFoundException;
@@ -63,18 +64,20 @@ public class DefaultTeXFont implements TeXFont {
 
     private static Map<String, CharFont[]> textStyleMappings;
     private static Map<String, CharFont> symbolMappings;
-    private static FontInfo[] fontInfo = new FontInfo[0];
+    private static volatile FontInfo[] fontInfo = new FontInfo[0];
     private static Map<String, Float> parameters;
     private static Map<String, Number> generalSettings;
 
     private static boolean magnificationEnable = true;
+    // the size factors used by the default render context
+    private static volatile float textFactor = 1, scriptFactor, scriptScriptFactor;
     
     protected static final int TOP = 0, MID = 1, REP = 2, BOT = 3;
 
     protected static final int WIDTH = 0, HEIGHT = 1, DEPTH = 2, IT = 3;
 
-    public static List<Character.UnicodeBlock> loadedAlphabets = new ArrayList<Character.UnicodeBlock>();
-    public static Map<Character.UnicodeBlock, AlphabetRegistration> registeredAlphabets = new HashMap<Character.UnicodeBlock, AlphabetRegistration>();
+    public static List<Character.UnicodeBlock> loadedAlphabets = new CopyOnWriteArrayList<Character.UnicodeBlock>();
+    public static Map<Character.UnicodeBlock, AlphabetRegistration> registeredAlphabets = new ConcurrentHashMap<Character.UnicodeBlock, AlphabetRegistration>();
 
     protected float factor = 1f;
 
@@ -85,22 +88,47 @@ public class DefaultTeXFont implements TeXFont {
     public boolean isIt = false;
 
     static {
-        DefaultTeXFontParser parser = new DefaultTeXFontParser();
         //load LATIN block
         loadedAlphabets.add(Character.UnicodeBlock.of('a'));
-        // fonts + font descriptions
-        fontInfo = parser.parseFontDescriptions(fontInfo);
-        // general font parameters
-        parameters = parser.parseParameters();
-        // text style mappings
-        textStyleMappings = parser.parseTextStyleMappings();
-        // default text style : style mappings
-        defaultTextStyleMappings = parser.parseDefaultTextStyleMappings();
-        // symbol mappings
-        symbolMappings = parser.parseSymbolMappings();
-        // general settings
-        generalSettings = parser.parseGeneralSettings();
-        generalSettings.put("textfactor", 1);
+        CompiledResources res = CompiledResources.get();
+        if (res != null) {
+            try {
+                loadedAlphabets.addAll(res.readAlphabets());
+                fontInfo = res.readFontDescriptions();
+                parameters = res.readParameters();
+                textStyleMappings = new ConcurrentHashMap<String, CharFont[]>(res.readTextStyleMappings());
+                defaultTextStyleMappings = res.readDefaultTextStyleMappings();
+                symbolMappings = new ConcurrentHashMap<String, CharFont>(res.readSymbolMappings());
+                generalSettings = res.readGeneralSettings();
+            } catch (ResourceParseException e) {
+                // the classes of the fonts have been checked, so this is a damaged section:
+                // forget what has been read and parse the XML files from now on
+                System.err.println("Warning: JLaTeXMath: " + e.getMessage() + ", the XML files are used");
+                loadedAlphabets.retainAll(Collections.singleton(Character.UnicodeBlock.of('a')));
+                DefaultTeXFontParser.Font_ID.clear();
+                FontInfo.clear();
+                fontInfo = new FontInfo[0];
+                CompiledResources.disable();
+                res = null;
+            }
+        }
+        if (res == null) {
+            DefaultTeXFontParser parser = new DefaultTeXFontParser();
+            // fonts + font descriptions
+            fontInfo = parser.parseFontDescriptions(fontInfo);
+            // general font parameters
+            parameters = parser.parseParameters();
+            // text style mappings
+            textStyleMappings = new ConcurrentHashMap<String, CharFont[]>(parser.parseTextStyleMappings());
+            // default text style : style mappings
+            defaultTextStyleMappings = parser.parseDefaultTextStyleMappings();
+            // symbol mappings
+            symbolMappings = new ConcurrentHashMap<String, CharFont>(parser.parseSymbolMappings());
+            // general settings
+            generalSettings = parser.parseGeneralSettings();
+        }
+        scriptFactor = generalSettings.get("scriptfactor").floatValue();
+        scriptScriptFactor = generalSettings.get("scriptscriptfactor").floatValue();
 
         // check if mufontid exists
         int muFontId = generalSettings.get(DefaultTeXFontParser.MUFONTID_ATTR).intValue();
@@ -113,9 +141,15 @@ public class DefaultTeXFont implements TeXFont {
     }
 
     private final float size; // standard size
+    private final RenderContext context;
 
     public DefaultTeXFont(float pointSize) {
+        this(pointSize, RenderContext.getDefault());
+    }
+
+    public DefaultTeXFont(float pointSize, RenderContext context) {
         size = pointSize;
+        this.context = context;
     }
 
     public DefaultTeXFont(float pointSize, boolean b, boolean rm, boolean ss, boolean tt, boolean it) {
@@ -123,7 +157,12 @@ public class DefaultTeXFont implements TeXFont {
     }
 
     public DefaultTeXFont(float pointSize, float f, boolean b, boolean rm, boolean ss, boolean tt, boolean it) {
+        this(pointSize, f, b, rm, ss, tt, it, RenderContext.getDefault());
+    }
+
+    public DefaultTeXFont(float pointSize, float f, boolean b, boolean rm, boolean ss, boolean tt, boolean it, RenderContext context) {
         size = pointSize;
+        this.context = context;
         factor = f;
         isBold = b;
         isRoman = rm;
@@ -132,6 +171,30 @@ public class DefaultTeXFont implements TeXFont {
         isIt = it;
     }
 
+    static FontInfo[] getFontInfos() {
+        return fontInfo;
+    }
+
+    static Map<String, Float> getParameters() {
+        return parameters;
+    }
+
+    static Map<String, Number> getGeneralSettings() {
+        return generalSettings;
+    }
+
+    static Map<String, CharFont[]> getTextStyleMappings() {
+        return textStyleMappings;
+    }
+
+    static String[] getDefaultTextStyleMappings() {
+        return defaultTextStyleMappings;
+    }
+
+    static Map<String, CharFont> getSymbolMappings() {
+        return symbolMappings;
+    }
+
     public static void addTeXFontDescription(String file) throws ResourceParseException {
         FileInputStream in;
         try {
@@ -142,22 +205,26 @@ public class DefaultTeXFont implements TeXFont {
         addTeXFontDescription(in, file);
     }
 
-    public static void addTeXFontDescription(InputStream in, String name) throws ResourceParseException {
+    public static synchronized void addTeXFontDescription(InputStream in, String name) throws ResourceParseException {
         DefaultTeXFontParser dtfp = new DefaultTeXFontParser(in, name);
         fontInfo = dtfp.parseFontDescriptions(fontInfo);
         textStyleMappings.putAll(dtfp.parseTextStyleMappings());
         symbolMappings.putAll(dtfp.parseSymbolMappings());
+        CharCache.clear();
+        MacroScope.globalChanged();
     }
 
-    public static void addTeXFontDescription(Object base, InputStream in, String name) throws ResourceParseException {
+    public static synchronized void addTeXFontDescription(Object base, InputStream in, String name) throws ResourceParseException {
         DefaultTeXFontParser dtfp = new DefaultTeXFontParser(base, in, name);
         fontInfo = dtfp.parseFontDescriptions(fontInfo);
         dtfp.parseExtraPath();
         textStyleMappings.putAll(dtfp.parseTextStyleMappings());
         symbolMappings.putAll(dtfp.parseSymbolMappings());
+        CharCache.clear();
+        MacroScope.globalChanged();
     }
 
-    public static void addAlphabet(Character.UnicodeBlock alphabet, InputStream inlanguage, String language, InputStream insymbols, String symbols, InputStream inmappings, String mappings) throws ResourceParseException {
+    public static synchronized void addAlphabet(Character.UnicodeBlock alphabet, InputStream inlanguage, String language, InputStream insymbols, String symbols, InputStream inmappings, String mappings) throws ResourceParseException {
         if (!loadedAlphabets.contains(alphabet)) {
             addTeXFontDescription(inlanguage, language);
             SymbolAtom.addSymbolAtom(insymbols, symbols);
@@ -166,7 +233,7 @@ public class DefaultTeXFont implements TeXFont {
         }
     }
 
-    public static void addAlphabet(Object base, Character.UnicodeBlock[] alphabet, String language) throws ResourceParseException {
+    public static synchronized void addAlphabet(Object base, Character.UnicodeBlock[] alphabet, String language) throws ResourceParseException {
         boolean b = false;
         for (int i = 0; !b && i < alphabet.length; i++) {
             b = loadedAlphabets.contains(alphabet[i]) || b;
@@ -194,7 +261,15 @@ public class DefaultTeXFont implements TeXFont {
     public static void addAlphabet(AlphabetRegistration reg) {
         try {
             if (reg != null) {
-                DefaultTeXFont.addAlphabet(reg.getPackage(), reg.getUnicodeBlock(), reg.getTeXFontFileName());
+                Object pack = reg.getPackage();
+                if (pack == null) {
+                    // the alphabet is not available, don't try again
+                    for (Character.UnicodeBlock block : reg.getUnicodeBlock()) {
+                        registeredAlphabets.remove(block);
+                    }
+                } else {
+                    DefaultTeXFont.addAlphabet(pack, reg.getUnicodeBlock(), reg.getTeXFontFileName());
+                }
             }
         } catch (FontAlreadyLoadedException e) {
         } catch (AlphabetRegistrationException e) {
@@ -210,43 +285,47 @@ public class DefaultTeXFont implements TeXFont {
     }
 
     public TeXFont copy() {
-        return new DefaultTeXFont(size, factor, isBold, isRoman, isSs, isTt, isIt);
+        return new DefaultTeXFont(size, factor, isBold, isRoman, isSs, isTt, isIt, context);
     }
 
     public TeXFont deriveFont(float size) {
-        return new DefaultTeXFont(size, factor, isBold, isRoman, isSs, isTt, isIt);
+        return new DefaultTeXFont(size, factor, isBold, isRoman, isSs, isTt, isIt, context);
     }
 
     public TeXFont scaleFont(float factor) {
-        return new DefaultTeXFont(size, factor, isBold, isRoman, isSs, isTt, isIt);
+        return new DefaultTeXFont(size, factor, isBold, isRoman, isSs, isTt, isIt, context);
     }
 
     public float getScaleFactor() {
         return factor;
     }
 
+    public RenderContext getRenderContext() {
+        return context;
+    }
+
     public float getAxisHeight(int style) {
-        return getParameter("axisheight") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("axisheight") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getBigOpSpacing1(int style) {
-        return getParameter("bigopspacing1") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("bigopspacing1") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getBigOpSpacing2(int style) {
-        return getParameter("bigopspacing2") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("bigopspacing2") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getBigOpSpacing3(int style) {
-        return getParameter("bigopspacing3") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("bigopspacing3") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getBigOpSpacing4(int style) {
-        return getParameter("bigopspacing4") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("bigopspacing4") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getBigOpSpacing5(int style) {
-        return getParameter("bigopspacing5") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("bigopspacing5") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     private Char getChar(char c, CharFont[] cf, int style) {
@@ -273,7 +352,7 @@ public class DefaultTeXFont implements TeXFont {
     }
 
     public Char getChar(char c, String textStyle, int style) throws TextStyleMappingNotFoundException {
-        Object mapping = textStyleMappings.get(textStyle);
+        Object mapping = textStyle == null ? null : textStyleMappings.get(textStyle);
         if (mapping == null) // text style mapping not found
             throw new TextStyleMappingNotFoundException(textStyle);
         else
@@ -281,7 +360,7 @@ public class DefaultTeXFont implements TeXFont {
     }
 
     public Char getChar(CharFont cf, int style) {
-        float fsize = getSizeFactor(style);
+        float fsize = context.getSizeFactor(style);
         int id = isBold ? cf.boldFontId : cf.fontId;
         FontInfo info = fontInfo[id];
         if (isBold && cf.fontId == cf.boldFontId) {
@@ -309,8 +388,11 @@ public class DefaultTeXFont implements TeXFont {
             info = fontInfo[id];
             cf = new CharFont(cf.c, id, style);
         }
-        Font font = info.getFont();
-        return new Char(cf.c, font, id, getMetrics(cf, factor * fsize));
+        if (cf.fontId != id) {
+            // the metrics are the ones of the regular font, not of the bold one
+            return new Char(cf.c, info.getFont(), id, getMetrics(cf, factor * fsize));
+        }
+        return getChar(cf.c, id, factor * fsize);
     }
 
     public Char getChar(String symbolName, int style) throws SymbolMappingNotFoundException {
@@ -335,21 +417,20 @@ public class DefaultTeXFont implements TeXFont {
     }
 
     public float getDefaultRuleThickness(int style) {
-        return getParameter("defaultrulethickness") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("defaultrulethickness") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getDenom1(int style) {
-        return getParameter("denom1") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("denom1") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getDenom2(int style) {
-        return getParameter("denom2") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("denom2") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public Extension getExtension(Char c, int style) {
-        Font f = c.getFont();
         int fc = c.getFontCode();
-        float s = getSizeFactor(style);
+        float s = context.getSizeFactor(style);
 
         // construct Char for every part
         FontInfo info = fontInfo[fc];
@@ -359,7 +440,7 @@ public class DefaultTeXFont implements TeXFont {
             if (ext[i] == NONE) {
                 parts[i] = null;
             } else {
-                parts[i] = new Char((char) ext[i], f, fc, getMetrics(new CharFont((char) ext[i], fc), s));
+                parts[i] = getChar((char) ext[i], fc, s);
             }
         }
 
@@ -369,7 +450,7 @@ public class DefaultTeXFont implements TeXFont {
     public float getKern(CharFont left, CharFont right, int style) {
         if (left.fontId == right.fontId){
             FontInfo info = fontInfo[left.fontId];
-            return info.getKern(left.c, right.c, getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT);
+            return info.getKern(left.c, right.c, context.getSizeFactor(style) * context.getPixelsPerPoint());
         } else {
             return 0;
         }
@@ -384,10 +465,26 @@ public class DefaultTeXFont implements TeXFont {
         }
     }
 
+    /**
+     * Get the Char of a font with metrics for the given size, from the cache if possible
+     */
+    private Char getChar(char c, int fontId, float size) {
+        final float scale = size * context.getPixelsPerPoint();
+        Char ch = CharCache.get(c, fontId, scale);
+        if (ch == null) {
+            FontInfo info = fontInfo[fontId];
+            float[] m = info.getMetrics(c);
+            ch = CharCache.put(new Char(c, info.getFont(), fontId, new Metrics(m[WIDTH], m[HEIGHT], m[DEPTH], m[IT], scale, scale)), scale);
+        }
+
+        return ch;
+    }
+
     private Metrics getMetrics(CharFont cf, float size) {
         FontInfo info = fontInfo[cf.fontId];
         float[] m = info.getMetrics(cf.c);
-        return new Metrics(m[WIDTH], m[HEIGHT], m[DEPTH], m[IT], size * TeXFormula.PIXELS_PER_POINT, size);
+        // the fonts have a size of 1 so the glyphs are scaled as the metrics
+        return new Metrics(m[WIDTH], m[HEIGHT], m[DEPTH], m[IT], size * context.getPixelsPerPoint(), size * context.getPixelsPerPoint());
     }
 
     public int getMuFontId() {
@@ -397,25 +494,24 @@ public class DefaultTeXFont implements TeXFont {
     public Char getNextLarger(Char c, int style) {
         FontInfo info = fontInfo[c.getFontCode()];
         CharFont ch = info.getNextLarger(c.getChar());
-        FontInfo newInfo = fontInfo[ch.fontId];
-        return new Char(ch.c, newInfo.getFont(), ch.fontId, getMetrics(ch, getSizeFactor(style)));
+        return getChar(ch.c, ch.fontId, context.getSizeFactor(style));
     }
 
     public float getNum1(int style) {
-        return getParameter("num1") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("num1") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getNum2(int style) {
-        return getParameter("num2") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("num2") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getNum3(int style) {
-        return getParameter("num3") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("num3") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getQuad(int style, int fontCode) {
         FontInfo info = fontInfo[fontCode];
-        return info.getQuad(getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT);
+        return info.getQuad(context.getSizeFactor(style) * context.getPixelsPerPoint());
     }
 
     public float getSize() {
@@ -434,44 +530,44 @@ public class DefaultTeXFont implements TeXFont {
     public float getSpace(int style) {
         int spaceFontId = generalSettings.get(DefaultTeXFontParser.SPACEFONTID_ATTR).intValue();
         FontInfo info = fontInfo[spaceFontId];
-        return info.getSpace(getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT);
+        return info.getSpace(context.getSizeFactor(style) * context.getPixelsPerPoint());
     }
 
     public float getSub1(int style) {
-        return getParameter("sub1") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("sub1") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getSub2(int style) {
-        return getParameter("sub2") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("sub2") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getSubDrop(int style) {
-        return getParameter("subdrop") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("subdrop") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getSup1(int style) {
-        return getParameter("sup1") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("sup1") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getSup2(int style) {
-        return getParameter("sup2") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("sup2") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getSup3(int style) {
-        return getParameter("sup3") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("sup3") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getSupDrop(int style) {
-        return getParameter("supdrop") * getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return getParameter("supdrop") * context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public float getXHeight(int style, int fontCode) {
         FontInfo info = fontInfo[fontCode];
-        return info.getXHeight(getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT);
+        return info.getXHeight(context.getSizeFactor(style) * context.getPixelsPerPoint());
     }
 
     public float getEM(int style) {
-        return getSizeFactor(style) * TeXFormula.PIXELS_PER_POINT;
+        return context.getSizeFactor(style) * context.getPixelsPerPoint();
     }
 
     public boolean hasNextLarger(Char c) {
@@ -531,10 +627,11 @@ public class DefaultTeXFont implements TeXFont {
 
     public static void setMathSizes(float ds, float ts, float ss, float sss) {
         if (magnificationEnable) {
-            generalSettings.put("scriptfactor", Math.abs(ss / ds));
-            generalSettings.put("scriptscriptfactor", Math.abs(sss / ds));
-            generalSettings.put("textfactor", Math.abs(ts / ds));
+            scriptFactor = Math.abs(ss / ds);
+            scriptScriptFactor = Math.abs(sss / ds);
+            textFactor = Math.abs(ts / ds);
             TeXFormula.defaultSize = Math.abs(ds);
+            MacroScope.globalChanged();
         }
     }
 
@@ -556,14 +653,17 @@ public class DefaultTeXFont implements TeXFont {
             return (Float)param;
     }
 
+    /**
+     * @return the size factor of the style in the default render context
+     */
     public static float getSizeFactor(int style) {
         if (style < TeXConstants.STYLE_TEXT)
             return 1;
         else if (style < TeXConstants.STYLE_SCRIPT)
-            return generalSettings.get("textfactor").floatValue();
+            return textFactor;
         else if (style < TeXConstants.STYLE_SCRIPT_SCRIPT)
-            return generalSettings.get("scriptfactor").floatValue();
+            return scriptFactor;
         else
-            return generalSettings.get("scriptscriptfactor").floatValue();
+            return scriptScriptFactor;
     }
 }
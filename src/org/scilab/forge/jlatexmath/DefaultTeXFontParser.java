@@ -42,6 +42,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import com.dhsdevelopments.androidjlatexmath.swingcompat.GraphicsEnvironment;
 
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -196,16 +197,19 @@ public class DefaultTeXFontParser {
     }
     
     public FontInfo[] parseFontDescriptions(FontInfo[] fi, InputStream file, String name) throws ResourceParseException {
+	return parseFontDescriptions(fi, file, name, null);
+    }
+
+    /**
+     * @param owner the class giving the resource name when the chars can be read again
+     * from it the first time they are used, null to process them now
+     */
+    private FontInfo[] parseFontDescriptions(FontInfo[] fi, InputStream file, String name, Class<?> owner) throws ResourceParseException {
 	if (file == null) {
 	    return fi;
 	}
         ArrayList<FontInfo> res = new ArrayList<FontInfo>(Arrays.asList(fi));
-	Element font;
-	try {
-	    font = factory.newDocumentBuilder().parse(file).getDocumentElement();
-	} catch (Exception e) {
-	    throw new XMLResourceParseException("Cannot find the file " + name + "!" + e.toString());
-	}
+	Element font = parseFontFile(file, name);
 	
 	String fontName = getAttrValueAndCheckIfNotNull("name", font);
 	// get required integer attribute
@@ -254,10 +258,29 @@ public class DefaultTeXFontParser {
 	if (skewChar != -1) // attribute set
 	    info.setSkewChar((char) skewChar);
 	
-	// process all "Char"-elements
-	NodeList listF = font.getElementsByTagName("Char");
-	for (int j = 0; j < listF.getLength(); j++)
-	    processCharElement((Element) listF.item(j), info);
+	if (owner == null) {
+	    processCharElements(font, info);
+	} else {
+	    // process all "Char"-elements when a char of this font is used for the first time,
+	    // the file is read again instead of keeping its whole document
+	    final Class<?> resourceOwner = owner;
+	    final String resourceName = name;
+	    info.setCharsLoader(new FontInfo.CharsLoader() {
+		    public void load(FontInfo info) throws ResourceParseException {
+			InputStream in = resourceOwner.getResourceAsStream(resourceName);
+			if (in == null) {
+			    throw new XMLResourceParseException("Cannot find the file " + resourceName + "!");
+			}
+			try {
+			    processCharElements(parseFontFile(in, resourceName), info);
+			} finally {
+			    try {
+				in.close();
+			    } catch (IOException e) { }
+			}
+		    }
+		});
+	}
 	
 	// parsing OK, add to table
 	res.add(info);
@@ -282,11 +305,8 @@ public class DefaultTeXFontParser {
             for (int i = 0; i < list.getLength(); i++) {
 		// get required string attribute
 		String include = getAttrValueAndCheckIfNotNull("include", (Element)list.item(i));
-		if (base == null) {
-		    fi = parseFontDescriptions(fi, DefaultTeXFontParser.class.getResourceAsStream(include), include);
-		} else {
-		    fi = parseFontDescriptions(fi, base.getClass().getResourceAsStream(include), include);
-		}
+		Class<?> owner = base == null ? DefaultTeXFontParser.class : base.getClass();
+		fi = parseFontDescriptions(fi, owner.getResourceAsStream(include), include, owner);
 	    }
 	}
 	return fi;
@@ -307,6 +327,25 @@ public class DefaultTeXFontParser {
 	}
     }
     
+    private static Element parseFontFile(InputStream file, String name) throws ResourceParseException {
+	try {
+	    DocumentBuilder builder;
+	    // the chars of several fonts can be loaded at the same time
+	    synchronized (factory) {
+		builder = factory.newDocumentBuilder();
+	    }
+	    return builder.parse(file).getDocumentElement();
+	} catch (Exception e) {
+	    throw new XMLResourceParseException("Cannot find the file " + name + "!" + e.toString());
+	}
+    }
+
+    private static void processCharElements(Element font, FontInfo info) throws ResourceParseException {
+	NodeList list = font.getElementsByTagName("Char");
+	for (int j = 0; j < list.getLength(); j++)
+	    processCharElement((Element) list.item(j), info);
+    }
+
     private static void processCharElement(Element charElement, FontInfo info)
     throws ResourceParseException {
         // retrieve required integer attribute
@@ -348,7 +387,8 @@ public class DefaultTeXFontParser {
 
     public static Font createFont(InputStream fontIn, String name) throws ResourceParseException {
         try {
-            Font f = Font.createFont(Font.TRUETYPE_FONT, fontIn).deriveFont( TeXFormula.PIXELS_PER_POINT);
+            // the font has a size of 1, the boxes scale it with the pixels per point of their context
+            Font f = Font.createFont(Font.TRUETYPE_FONT, fontIn);
 	    GraphicsEnvironment graphicEnv = GraphicsEnvironment.getLocalGraphicsEnvironment();
 	    /**
 	     * The following fails under java 1.5
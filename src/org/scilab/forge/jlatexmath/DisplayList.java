@@ -0,0 +1,394 @@
+/* DisplayList.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.dhsdevelopments.androidjlatexmath.swingcompat.BasicStroke;
+import com.dhsdevelopments.androidjlatexmath.swingcompat.Color;
+import com.dhsdevelopments.androidjlatexmath.swingcompat.Graphics2D;
+import com.dhsdevelopments.androidjlatexmath.swingcompat.Stroke;
+import com.dhsdevelopments.androidjlatexmath.swingcompat.geom.AffineTransform;
+import com.dhsdevelopments.androidjlatexmath.swingcompat.geom.Line2D;
+import com.dhsdevelopments.androidjlatexmath.swingcompat.geom.Rectangle2D;
+import com.dhsdevelopments.androidjlatexmath.swingcompat.geom.RoundRectangle2D;
+
+/**
+ * A box compiled in a flat list of drawing operations: glyph runs, rectangles, lines,
+ * arcs, color, stroke and transform changes. The list doesn't reference the boxes nor
+ * the atoms, it is immutable and can be drawn by several threads at the same time,
+ * cached or written in a stream.
+ * <p>
+ * <pre>
+ * DisplayList list = DisplayList.compile(box);
+ * list.draw(g2, x, y); // same as box.draw(g2, x, y)
+ * </pre>
+ * The colors, the stroke and the transform restored by the boxes at the end of their
+ * drawing are the ones of the graphics given to {@link #draw(Graphics2D, float, float)}.
+ * The boxes which compute something from the current transform (e.g. to round their
+ * lines on pixels) are compiled with an identity transform.
+ */
+public final class DisplayList {
+
+    private static final int MAGIC = 0x4A4C4D44; // JLMD
+    private static final int VERSION = 2;
+
+    // the operations, followed by their int arguments in ops and their float arguments in args
+    static final int COLOR = 0;           // ref
+    static final int BASE_COLOR = 1;
+    static final int STROKE = 2;          // ref
+    static final int BASE_STROKE = 3;
+    static final int SET_TRANSFORM = 4;   // index in transforms
+    static final int TRANSLATE = 5;       // x, y
+    static final int SCALE = 6;           // x, y
+    static final int ROTATE = 7;          // theta, x, y
+    static final int FILL_RECT = 8;       // x, y, w, h
+    static final int DRAW_RECT = 9;       // x, y, w, h
+    static final int DRAW_ROUND_RECT = 10; // x, y, w, h, arcw, arch
+    static final int DRAW_LINE = 11;      // x1, y1, x2, y2
+    static final int DRAW_ARC = 12;       // x, y, w, h, start, extent (ints)
+    static final int FILL_ARC = 13;       // x, y, w, h, start, extent (ints)
+    static final int GLYPHS = 14;         // font id, n, first char (ints); size, n * (x, y)
+
+    private final float width;
+    private final float height;
+    private final float depth;
+    private final int[] ops;
+    private final float[] args;
+    private final char[] chars;
+    private final Object[] refs;
+    private final float[][] transforms;
+
+    DisplayList(float width, float height, float depth, int[] ops, float[] args, char[] chars, Object[] refs, float[][] transforms) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.ops = ops;
+        this.args = args;
+        this.chars = chars;
+        this.refs = refs;
+        this.transforms = transforms;
+    }
+
+    /**
+     * Compile a box
+     * @param box the box
+     * @return the display list drawing the box
+     * @throws IllegalArgumentException if the box draws glyphs with a font which is not
+     * one of the fonts loaded by {@link FontInfo} (e.g. a text drawn with a system font)
+     */
+    public static DisplayList compile(Box box) {
+        DisplayListRecorder recorder = new DisplayListRecorder();
+        box.draw(recorder, 0, 0);
+
+        return recorder.toDisplayList(box);
+    }
+
+    public float getWidth() {
+        return width;
+    }
+
+    public float getHeight() {
+        return height;
+    }
+
+    public float getDepth() {
+        return depth;
+    }
+
+    /**
+     * Draw the compiled box at the given coordinates
+     * @param g2 the graphics
+     * @param x the x-coordinate
+     * @param y the y-coordinate
+     */
+    public void draw(Graphics2D g2, float x, float y) {
+        final AffineTransform base = g2.getTransform();
+        final Color baseColor = g2.getColor();
+        final Stroke baseStroke = g2.getStroke();
+        g2.translate(x, y);
+        final AffineTransform origin = g2.getTransform();
+        int a = 0;
+        int i = 0;
+        while (i < ops.length) {
+            switch (ops[i++]) {
+            case COLOR :
+                g2.setColor((Color) refs[ops[i++]]);
+                break;
+            case BASE_COLOR :
+                g2.setColor(baseColor);
+                break;
+            case STROKE :
+                g2.setStroke((Stroke) refs[ops[i++]]);
+                break;
+            case BASE_STROKE :
+                g2.setStroke(baseStroke);
+                break;
+            case SET_TRANSFORM :
+                g2.setTransform(origin);
+                applyTransform(g2, transforms[ops[i++]]);
+                break;
+            case TRANSLATE :
+                g2.translate(args[a], args[a + 1]);
+                a += 2;
+                break;
+            case SCALE :
+                g2.scale(args[a], args[a + 1]);
+                a += 2;
+                break;
+            case ROTATE :
+                g2.rotate(args[a], args[a + 1], args[a + 2]);
+                a += 3;
+                break;
+            case FILL_RECT :
+                g2.fill(new Rectangle2D.Float(args[a], args[a + 1], args[a + 2], args[a + 3]));
+                a += 4;
+                break;
+            case DRAW_RECT :
+                g2.draw(new Rectangle2D.Float(args[a], args[a + 1], args[a + 2], args[a + 3]));
+                a += 4;
+                break;
+            case DRAW_ROUND_RECT :
+                g2.draw(new RoundRectangle2D.Float(args[a], args[a + 1], args[a + 2], args[a + 3], args[a + 4], args[a + 5]));
+                a += 6;
+                break;
+            case DRAW_LINE :
+                Line2D.Float line = new Line2D.Float();
+                line.setLine(args[a], args[a + 1], args[a + 2], args[a + 3]);
+                g2.draw(line);
+                a += 4;
+                break;
+            case DRAW_ARC :
+                g2.drawArc(ops[i], ops[i + 1], ops[i + 2], ops[i + 3], ops[i + 4], ops[i + 5]);
+                i += 6;
+                break;
+            case FILL_ARC :
+                g2.fillArc(ops[i], ops[i + 1], ops[i + 2], ops[i + 3], ops[i + 4], ops[i + 5]);
+                i += 6;
+                break;
+            case GLYPHS :
+                final int fontId = ops[i], n = ops[i + 1], first = ops[i + 2];
+                final float size = args[a++];
+                i += 3;
+                g2.drawGlyphs(FontInfo.getFont(fontId), size, chars, first, args, a, n);
+                a += 2 * n;
+                break;
+            default :
+                throw new IllegalStateException("Invalid display list");
+            }
+        }
+        g2.setTransform(base);
+        g2.setColor(baseColor);
+        g2.setStroke(baseStroke);
+    }
+
+    /**
+     * Apply a sequence of transforms recorded by the {@link DisplayListRecorder}
+     */
+    static void applyTransform(Graphics2D g2, float[] seq) {
+        for (int i = 0; i < seq.length; i += 4) {
+            switch ((int) seq[i]) {
+            case TRANSLATE :
+                g2.translate(seq[i + 1], seq[i + 2]);
+                break;
+            case SCALE :
+                g2.scale(seq[i + 1], seq[i + 2]);
+                break;
+            case ROTATE :
+                g2.rotate(seq[i + 1], seq[i + 2], seq[i + 3]);
+                break;
+            default :
+                throw new IllegalStateException("Invalid display list");
+            }
+        }
+    }
+
+    /**
+     * @param op an operation
+     * @return the number of its int arguments
+     */
+    private static int getIntArgs(int op) {
+        switch (op) {
+        case COLOR :
+        case STROKE :
+        case SET_TRANSFORM :
+            return 1;
+        case DRAW_ARC :
+        case FILL_ARC :
+            return 6;
+        case GLYPHS :
+            return 3;
+        default :
+            return 0;
+        }
+    }
+
+    /**
+     * Write the display list. The fonts are written with their names, since their ids
+     * depend on the order of their loading.
+     * @param out the output
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeFloat(width);
+        out.writeFloat(height);
+        out.writeFloat(depth);
+
+        // the ids of the fonts are replaced by their index in the table of their names
+        final int[] wops = ops.clone();
+        final List<String> names = new ArrayList<String>();
+        final Map<Integer, Integer> indices = new HashMap<Integer, Integer>();
+        for (int i = 0; i < wops.length; i += 1 + getIntArgs(wops[i])) {
+            if (wops[i] == GLYPHS) {
+                Integer index = indices.get(wops[i + 1]);
+                if (index == null) {
+                    index = names.size();
+                    indices.put(wops[i + 1], index);
+                    names.add(DefaultTeXFontParser.Font_ID.get(wops[i + 1]));
+                }
+                wops[i + 1] = index;
+            }
+        }
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+
+        out.writeInt(wops.length);
+        for (int op : wops) {
+            out.writeInt(op);
+        }
+        out.writeInt(args.length);
+        for (float f : args) {
+            out.writeFloat(f);
+        }
+        out.writeInt(chars.length);
+        for (char c : chars) {
+            out.writeChar(c);
+        }
+        out.writeInt(refs.length);
+        for (Object o : refs) {
+            if (o instanceof Color) {
+                Color c = (Color) o;
+                out.writeByte(0);
+                out.writeInt(c.r);
+                out.writeInt(c.g);
+                out.writeInt(c.b);
+            } else {
+                BasicStroke s = (BasicStroke) o;
+                out.writeByte(1);
+                out.writeFloat(s.getLineWidth());
+                out.writeInt(s.getEndCap());
+                out.writeInt(s.getLineJoin());
+                out.writeFloat(s.getMiterLimit());
+            }
+        }
+        out.writeInt(transforms.length);
+        for (float[] seq : transforms) {
+            out.writeInt(seq.length);
+            for (float f : seq) {
+                out.writeFloat(f);
+            }
+        }
+    }
+
+    /**
+     * Read a display list written by {@link #write(DataOutput)}
+     * @param in the input
+     * @return the display list
+     * @throws IOException if an I/O error occurs, if the data are not a display list or
+     * if a font used by the list is not loaded
+     */
+    public static DisplayList read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a display list or unsupported version");
+        }
+        final float width = in.readFloat();
+        final float height = in.readFloat();
+        final float depth = in.readFloat();
+        final int[] fontIds = new int[in.readInt()];
+        for (int i = 0; i < fontIds.length; i++) {
+            final String name = in.readUTF();
+            fontIds[i] = DefaultTeXFontParser.Font_ID.indexOf(name);
+            if (fontIds[i] == -1 || !FontInfo.isRegistered(fontIds[i])) {
+                throw new IOException("Unknown font in the display list: " + name);
+            }
+        }
+        final int[] ops = new int[in.readInt()];
+        for (int i = 0; i < ops.length; i++) {
+            ops[i] = in.readInt();
+        }
+        for (int i = 0; i < ops.length; i += 1 + getIntArgs(ops[i])) {
+            if (ops[i] == GLYPHS) {
+                if (i + 1 >= ops.length || ops[i + 1] < 0 || ops[i + 1] >= fontIds.length) {
+                    throw new IOException("Invalid display list");
+                }
+                ops[i + 1] = fontIds[ops[i + 1]];
+            }
+        }
+        final float[] args = new float[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readFloat();
+        }
+        final char[] chars = new char[in.readInt()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = in.readChar();
+        }
+        final Object[] refs = new Object[in.readInt()];
+        for (int i = 0; i < refs.length; i++) {
+            switch (in.readByte()) {
+            case 0 :
+                refs[i] = new Color(in.readInt(), in.readInt(), in.readInt());
+                break;
+            case 1 :
+                refs[i] = new BasicStroke(in.readFloat(), in.readInt(), in.readInt(), in.readFloat());
+                break;
+            default :
+                throw new IOException("Invalid display list");
+            }
+        }
+        final float[][] transforms = new float[in.readInt()][];
+        for (int i = 0; i < transforms.length; i++) {
+            transforms[i] = new float[in.readInt()];
+            for (int j = 0; j < transforms[i].length; j++) {
+                transforms[i][j] = in.readFloat();
+            }
+        }
+
+        return new DisplayList(width, height, depth, ops, args, chars, refs, transforms);
+    }
+}
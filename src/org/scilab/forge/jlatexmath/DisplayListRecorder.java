@@ -0,0 +1,358 @@
+/* DisplayListRecorder.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.dhsdevelopments.androidjlatexmath.swingcompat.BasicStroke;
+import com.dhsdevelopments.androidjlatexmath.swingcompat.Color;
+import com.dhsdevelopments.androidjlatexmath.swingcompat.Font;
+import com.dhsdevelopments.androidjlatexmath.swingcompat.Graphics2D;
+import com.dhsdevelopments.androidjlatexmath.swingcompat.Stroke;
+import com.dhsdevelopments.androidjlatexmath.swingcompat.geom.AffineTransform;
+import com.dhsdevelopments.androidjlatexmath.swingcompat.geom.Line2D;
+import com.dhsdevelopments.androidjlatexmath.swingcompat.geom.Rectangle2D;
+import com.dhsdevelopments.androidjlatexmath.swingcompat.geom.RoundRectangle2D;
+
+/**
+ * A Graphics2D recording the drawing of a box in a {@link DisplayList}.
+ * <p>
+ * The color, the stroke and the transform of the graphics where the list will be
+ * replayed are unknown: the recorder gives tokens for them, and restoring a token is
+ * recorded as restoring the value of the target graphics. The consecutive glyphs drawn
+ * with the same font, size and transform are grouped in a single run.
+ */
+final class DisplayListRecorder implements Graphics2D {
+
+    private static final Color BASE_COLOR = new Color(0, 0, 0);
+    private static final Stroke BASE_STROKE = new Stroke() { };
+
+    private int[] ops = new int[64];
+    private int nops;
+    private float[] args = new float[256];
+    private int nargs;
+    private char[] chars = new char[64];
+    private int nchars;
+    private final List<Object> refs = new ArrayList<Object>();
+    private final List<float[]> transforms = new ArrayList<float[]>();
+
+    private Color color = BASE_COLOR;
+    private Stroke stroke = BASE_STROKE;
+    private Transform transform = new Transform();
+
+    // the pending glyph run
+    private int runFont = -1;
+    private float runSize;
+    private int runStart;
+    private int runLength;
+    private float[] runPos = new float[32];
+    private final Map<Font, Integer> fontIds = new IdentityHashMap<Font, Integer>();
+
+    DisplayList toDisplayList(Box box) {
+        flush();
+        return new DisplayList(box.getWidth(), box.getHeight(), box.getDepth(), Arrays.copyOf(ops, nops),
+                               Arrays.copyOf(args, nargs), Arrays.copyOf(chars, nchars), refs.toArray(),
+                               transforms.toArray(new float[transforms.size()][]));
+    }
+
+    public void drawGlyphs(Font font, float size, char[] chars, int charOffset, float[] positions, int posOffset, int count) {
+        final int id = getFontId(font);
+        for (int i = 0; i < count; i++) {
+            addGlyph(id, chars[charOffset + i], size, positions[posOffset + 2 * i], positions[posOffset + 2 * i + 1]);
+        }
+    }
+
+    public void drawGlyph(Font font, float size, char c, float x, float y) {
+        addGlyph(getFontId(font), c, size, x, y);
+    }
+
+    private int getFontId(Font font) {
+        Integer id = fontIds.get(font);
+        if (id == null) {
+            id = FontInfo.getFontId(font);
+            if (id == -1) {
+                throw new IllegalArgumentException("Only the fonts of FontInfo can be recorded");
+            }
+            fontIds.put(font, id);
+        }
+        return id;
+    }
+
+    private void addGlyph(int fontId, char c, float size, float x, float y) {
+        if (runFont != fontId || runSize != size) {
+            flush();
+            runFont = fontId;
+            runSize = size;
+            runStart = nchars;
+            runLength = 0;
+        }
+        if (nchars == chars.length) {
+            chars = Arrays.copyOf(chars, 2 * nchars);
+        }
+        chars[nchars++] = c;
+        if (2 * runLength + 2 > runPos.length) {
+            runPos = Arrays.copyOf(runPos, 2 * runPos.length);
+        }
+        runPos[2 * runLength] = x;
+        runPos[2 * runLength + 1] = y;
+        runLength++;
+    }
+
+    /**
+     * Write the pending glyph run, must be called before recording any other operation
+     */
+    private void flush() {
+        if (runFont != -1) {
+            addOp(DisplayList.GLYPHS);
+            addOp(runFont);
+            addOp(runLength);
+            addOp(runStart);
+            addArgs(runSize);
+            addArgs(Arrays.copyOf(runPos, 2 * runLength));
+            runFont = -1;
+        }
+    }
+
+    private void addOp(int op) {
+        if (nops == ops.length) {
+            ops = Arrays.copyOf(ops, 2 * nops);
+        }
+        ops[nops++] = op;
+    }
+
+    private void addArgs(float... a) {
+        if (nargs + a.length > args.length) {
+            args = Arrays.copyOf(args, Math.max(2 * args.length, nargs + a.length));
+        }
+        System.arraycopy(a, 0, args, nargs, a.length);
+        nargs += a.length;
+    }
+
+    private int addRef(Object o) {
+        refs.add(o);
+        return refs.size() - 1;
+    }
+
+    public Stroke getStroke() {
+        return stroke;
+    }
+
+    public Color getColor() {
+        return color;
+    }
+
+    public void setColor(Color c) {
+        flush();
+        color = c;
+        if (c == BASE_COLOR) {
+            addOp(DisplayList.BASE_COLOR);
+        } else {
+            addOp(DisplayList.COLOR);
+            addOp(addRef(c));
+        }
+    }
+
+    public void setStroke(Stroke s) {
+        flush();
+        stroke = s;
+        if (s == BASE_STROKE) {
+            addOp(DisplayList.BASE_STROKE);
+        } else if (s instanceof BasicStroke) {
+            addOp(DisplayList.STROKE);
+            addOp(addRef(s));
+        } else {
+            throw new IllegalArgumentException("Only the instances of BasicStroke can be recorded");
+        }
+    }
+
+    public void fill(Rectangle2D.Float r) {
+        flush();
+        addOp(DisplayList.FILL_RECT);
+        addArgs(r.x, r.y, r.w, r.h);
+    }
+
+    public void draw(Rectangle2D.Float r) {
+        flush();
+        addOp(DisplayList.DRAW_RECT);
+        addArgs(r.x, r.y, r.w, r.h);
+    }
+
+    public void draw(RoundRectangle2D.Float r) {
+        flush();
+        addOp(DisplayList.DRAW_ROUND_RECT);
+        addArgs(r.x, r.y, r.w, r.h, r.arcWidth, r.arcHeight);
+    }
+
+    public void draw(Line2D.Float l) {
+        flush();
+        addOp(DisplayList.DRAW_LINE);
+        addArgs(l.x1, l.y1, l.x2, l.y2);
+    }
+
+    public void drawArc(int x, int y, int w, int h, int startAngle, int widthAngle) {
+        flush();
+        addOp(DisplayList.DRAW_ARC);
+        addArc(x, y, w, h, startAngle, widthAngle);
+    }
+
+    public void fillArc(int x, int y, int w, int h, int startAngle, int widthAngle) {
+        flush();
+        addOp(DisplayList.FILL_ARC);
+        addArc(x, y, w, h, startAngle, widthAngle);
+    }
+
+    private void addArc(int x, int y, int w, int h, int startAngle, int widthAngle) {
+        addOp(x);
+        addOp(y);
+        addOp(w);
+        addOp(h);
+        addOp(startAngle);
+        addOp(widthAngle);
+    }
+
+    public void rotate(double theta, double x, double y) {
+        flush();
+        transform.rotate(theta, x, y);
+        addOp(DisplayList.ROTATE);
+        addArgs((float) theta, (float) x, (float) y);
+    }
+
+    public void translate(float x, float y) {
+        flush();
+        transform.translate(x, y);
+        addOp(DisplayList.TRANSLATE);
+        addArgs(x, y);
+    }
+
+    public void scale(float x, float y) {
+        flush();
+        transform.scale(x, y);
+        addOp(DisplayList.SCALE);
+        addArgs(x, y);
+    }
+
+    public AffineTransform getTransform() {
+        return transform.copy();
+    }
+
+    public void setTransform(AffineTransform t) {
+        if (!(t instanceof Transform)) {
+            throw new IllegalArgumentException("Only the transforms given by the recorder can be restored");
+        }
+        flush();
+        transform = (Transform) t.copy();
+        addOp(DisplayList.SET_TRANSFORM);
+        addOp(transforms.size());
+        transforms.add(transform.toArray());
+    }
+
+    /**
+     * A transform relative to the transform of the target graphics, kept as the list
+     * of the operations applied to it (see {@link DisplayList#applyTransform}).
+     */
+    private static final class Transform implements AffineTransform {
+
+        private float[] seq;
+        private int len;
+        // the matrix of the operations, to answer getScaleX and getScaleY
+        private double m00 = 1, m01, m02, m10, m11 = 1, m12;
+
+        Transform() {
+            seq = new float[8];
+        }
+
+        private void add(float op, float a, float b, float c) {
+            if (len + 4 > seq.length) {
+                seq = Arrays.copyOf(seq, 2 * seq.length);
+            }
+            seq[len++] = op;
+            seq[len++] = a;
+            seq[len++] = b;
+            seq[len++] = c;
+        }
+
+        void translate(double x, double y) {
+            add(DisplayList.TRANSLATE, (float) x, (float) y, 0);
+            m02 += m00 * x + m01 * y;
+            m12 += m10 * x + m11 * y;
+        }
+
+        public void scale(double x, double y) {
+            add(DisplayList.SCALE, (float) x, (float) y, 0);
+            m00 *= x;
+            m10 *= x;
+            m01 *= y;
+            m11 *= y;
+        }
+
+        void rotate(double theta, double x, double y) {
+            add(DisplayList.ROTATE, (float) theta, (float) x, (float) y);
+            final double cos = Math.cos(theta), sin = Math.sin(theta);
+            m02 += m00 * x + m01 * y;
+            m12 += m10 * x + m11 * y;
+            final double n00 = m00 * cos + m01 * sin, n01 = m01 * cos - m00 * sin;
+            final double n10 = m10 * cos + m11 * sin, n11 = m11 * cos - m10 * sin;
+            m00 = n00;
+            m01 = n01;
+            m10 = n10;
+            m11 = n11;
+            m02 -= m00 * x + m01 * y;
+            m12 -= m10 * x + m11 * y;
+        }
+
+        public double getScaleX() {
+            return m00;
+        }
+
+        public double getScaleY() {
+            return m11;
+        }
+
+        public AffineTransform copy() {
+            Transform t = new Transform();
+            t.seq = Arrays.copyOf(seq, seq.length);
+            t.len = len;
+            t.m00 = m00;
+            t.m01 = m01;
+            t.m02 = m02;
+            t.m10 = m10;
+            t.m11 = m11;
+            t.m12 = m12;
+            return t;
+        }
+
+        float[] toArray() {
+            return Arrays.copyOf(seq, len);
+        }
+    }
+}
@@ -30,8 +30,16 @@
 package org.scilab.forge.jlatexmath;
 
 import com.dhsdevelopments.androidjlatexmath.swingcompat.Font;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Contains all the font information for 1 font.
@@ -43,42 +51,36 @@ public class FontInfo {
      */
     public static final int NUMBER_OF_CHAR_CODES = 256;
 
-    private static Map<Integer, FontInfo> fonts = new HashMap<Integer, FontInfo>();
-    
-    private class CharCouple {
-        
-        private final char left, right;
-        
-        CharCouple(char l, char r) {
-            left = l;
-            right = r;
-        }
-        
-        public boolean equals(Object o) {
-            CharCouple lig = (CharCouple) o;
-            return left == lig.left && right == lig.right;
-        }
-        
-        public int hashCode() {
-            return (left + right) % 128;
-        }
+    // flags of a char in the binary form written by CompiledResources
+    private static final int HAS_METRICS = 1, HAS_NEXT_LARGER = 2, HAS_EXTENSION = 4;
+
+    /**
+     * Loads the metrics, the kerns and the ligatures of the chars of a font, this is done
+     * when one of them is requested for the first time.
+     */
+    interface CharsLoader {
+	void load(FontInfo info) throws ResourceParseException;
     }
+
+    private static Map<Integer, FontInfo> fonts = new ConcurrentHashMap<Integer, FontInfo>();
     
     // ID
     private final int fontId;
     
     // font
     private Font font;
-    private final Object base;
+    // the class whose resources contain the font file, null for the bundled fonts
+    private final Class<?> base;
     private final String path;
     private final String fontName;
 
-    private final Map<CharCouple,Character> lig = new HashMap<CharCouple,Character> ();
-    private final Map<CharCouple,Float> kern = new HashMap<CharCouple,Float>();
+    private final CharPairMap lig = new CharPairMap();
+    private final CharPairMap kern = new CharPairMap(); // float bits
     private float[][] metrics;
     private CharFont[] nextLarger;
     private int[][] extensions;
     private HashMap<Character, Character> unicode = null;
+    private volatile CharsLoader loader;
     
     // skew character of the font (used for positioning accents)
     private char skewChar = (char) -1;
@@ -99,6 +101,10 @@ public class FontInfo {
     protected final String itVersion;
 
     public FontInfo(int fontId, Object base, String path, String fontName, int unicode, float xHeight, float space, float quad, String boldVersion, String romanVersion, String ssVersion, String ttVersion, String itVersion) {
+	this(fontId, base == null ? null : base.getClass(), path, fontName, unicode, xHeight, space, quad, boldVersion, romanVersion, ssVersion, ttVersion, itVersion);
+    }
+
+    FontInfo(int fontId, Class<?> base, String path, String fontName, int unicode, float xHeight, float space, float quad, String boldVersion, String romanVersion, String ssVersion, String ttVersion, String itVersion) {
         this.fontId = fontId;
 	this.base = base;
 	this.path = path;
@@ -122,6 +128,26 @@ public class FontInfo {
 	fonts.put(fontId, this);
     }
     
+    /**
+     * Sets the loader of the chars, the getters of the chars data call it once before
+     * answering.
+     */
+    void setCharsLoader(CharsLoader loader) {
+	this.loader = loader;
+    }
+
+    private void loadChars() {
+	if (loader != null) {
+	    synchronized (this) {
+		final CharsLoader l = loader;
+		if (l != null) {
+		    l.load(this);
+		    loader = null;
+		}
+	    }
+	}
+    }
+
     /**
      *
      * @param left
@@ -132,7 +158,7 @@ public class FontInfo {
      *           kern value
      */
     public void addKern(char left, char right, float k) {
-        kern.put(new CharCouple(left, right), new Float(k));
+        kern.put(left, right, Float.floatToIntBits(k));
     }
     
     /**
@@ -144,38 +170,43 @@ public class FontInfo {
      *           ligature to replace left and right character
      */
     public void addLigature(char left, char right, char ligChar) {
-        lig.put(new CharCouple(left, right), new Character(ligChar));
+        lig.put(left, right, ligChar);
     }
     
     public int[] getExtension(char ch) {
+	loadChars();
         if (unicode == null) 
 	    return extensions[ch];
 	return extensions[unicode.get(ch)];
     }
     
     public float getKern(char left, char right, float factor) {
-        Object obj = kern.get(new CharCouple(left, right));
-        if (obj == null)
+        loadChars();
+        int i = kern.indexOf(left, right);
+        if (i == -1)
             return 0;
         else
-            return ((Float) obj).floatValue() * factor;
+            return Float.intBitsToFloat(kern.valueAt(i)) * factor;
     }
     
     public CharFont getLigature(char left, char right) {
-        Object obj = lig.get(new CharCouple(left, right));
-        if (obj == null)
+        loadChars();
+        int i = lig.indexOf(left, right);
+        if (i == -1)
             return null;
         else
-            return new CharFont(((Character) obj).charValue(), fontId);
+            return new CharFont((char) lig.valueAt(i), fontId);
     }
     
     public float[] getMetrics(char c) {
+	loadChars();
 	if (unicode == null)
 	    return metrics[c];
 	return metrics[unicode.get(c)];
     }
     
     public CharFont getNextLarger(char ch) {
+	loadChars();
         if (unicode == null)
 	    return nextLarger[ch];
 	return nextLarger[unicode.get(ch)];
@@ -291,14 +322,236 @@ public class FontInfo {
 	    if (base == null) {
 		font = DefaultTeXFontParser.createFont(path);
 	    } else {
-		font = DefaultTeXFontParser.createFont(base.getClass().getResourceAsStream(path), fontName);
+		font = DefaultTeXFontParser.createFont(base.getResourceAsStream(path), fontName);
 	    }
 	}
         return font;
     }
 
+    /**
+     * Writes the metrics of this font in the binary form read by {@link #read(DataInput, int)}.
+     * The ids of the other versions are not written, they must be set again once all the
+     * fonts are read.
+     */
+    void write(DataOutput out) throws IOException {
+	// the name of the class whose resources contain the font file
+	out.writeBoolean(base != null);
+	if (base != null) {
+	    out.writeUTF(base.getName());
+	}
+	out.writeUTF(path);
+	out.writeUTF(fontName);
+	out.writeInt(unicode == null ? 0 : metrics.length);
+	out.writeFloat(xHeight);
+	out.writeFloat(space);
+	out.writeFloat(quad);
+	writeVersion(out, boldVersion);
+	writeVersion(out, romanVersion);
+	writeVersion(out, ssVersion);
+	writeVersion(out, ttVersion);
+	writeVersion(out, itVersion);
+	out.writeChar(skewChar);
+
+	// the chars are written in a block read when the font is used for the first time
+	loadChars();
+	ByteArrayOutputStream block = new ByteArrayOutputStream();
+	writeChars(new DataOutputStream(block));
+	out.writeInt(block.size());
+	out.write(block.toByteArray());
+    }
+
+    private void writeChars(DataOutputStream out) throws IOException {
+	if (unicode == null) {
+	    int n = 0;
+	    for (int i = 0; i < metrics.length; i++) {
+		if (metrics[i] != null || nextLarger[i] != null || extensions[i] != null) {
+		    n++;
+		}
+	    }
+	    out.writeInt(n);
+	    for (int i = 0; i < metrics.length; i++) {
+		if (metrics[i] != null || nextLarger[i] != null || extensions[i] != null) {
+		    writeChar(out, (char) i, i);
+		}
+	    }
+	} else {
+	    out.writeInt(unicode.size());
+	    for (Map.Entry<Character, Character> e : unicode.entrySet()) {
+		writeChar(out, e.getKey(), e.getValue());
+	    }
+	}
+
+	kern.write(out);
+	lig.write(out);
+	out.flush();
+    }
+
+    private void writeChar(DataOutput out, char c, int i) throws IOException {
+	final int flags = (metrics[i] != null ? HAS_METRICS : 0)
+	    | (nextLarger[i] != null ? HAS_NEXT_LARGER : 0)
+	    | (extensions[i] != null ? HAS_EXTENSION : 0);
+	out.writeChar(c);
+	out.writeByte(flags);
+	if (metrics[i] != null) {
+	    for (int j = 0; j < 4; j++) {
+		out.writeFloat(metrics[i][j]);
+	    }
+	}
+	if (nextLarger[i] != null) {
+	    out.writeChar(nextLarger[i].c);
+	    out.writeInt(nextLarger[i].fontId);
+	}
+	if (extensions[i] != null) {
+	    for (int j = 0; j < 4; j++) {
+		out.writeInt(extensions[i][j]);
+	    }
+	}
+    }
+
+    private static void writeVersion(DataOutput out, String version) throws IOException {
+	out.writeBoolean(version != null);
+	if (version != null) {
+	    out.writeUTF(version);
+	}
+    }
+
+    private static String readVersion(DataInput in) throws IOException {
+	return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Reads a font written by {@link #write(DataOutput)}.
+     * @param in the input
+     * @param fontId the id of the font
+     * @return the font information
+     */
+    static FontInfo read(DataInput in, int fontId) throws IOException {
+	final Class<?> base = readBase(in);
+	final String path = in.readUTF();
+	final String fontName = in.readUTF();
+	final int unicode = in.readInt();
+	final float xHeight = in.readFloat();
+	final float space = in.readFloat();
+	final float quad = in.readFloat();
+	final String bold = readVersion(in);
+	final String roman = readVersion(in);
+	final String ss = readVersion(in);
+	final String tt = readVersion(in);
+	final String it = readVersion(in);
+	FontInfo info = new FontInfo(fontId, base, path, fontName, unicode, xHeight, space, quad, bold, roman, ss, tt, it);
+	info.skewChar = in.readChar();
+
+	final byte[] block = new byte[in.readInt()];
+	in.readFully(block);
+	info.setCharsLoader(new CharsLoader() {
+		public void load(FontInfo info) throws ResourceParseException {
+		    try {
+			readChars(new DataInputStream(new ByteArrayInputStream(block)), info);
+		    } catch (IOException e) {
+			throw new ResourceParseException(CompiledResources.RESOURCE_NAME + ": " + e.getMessage(), e);
+		    }
+		}
+	    });
+
+	return info;
+    }
+
+    private static void readChars(DataInput in, FontInfo info) throws IOException {
+	final int n = in.readInt();
+	for (int i = 0; i < n; i++) {
+	    final char c = in.readChar();
+	    final int flags = in.readByte();
+	    if ((flags & HAS_METRICS) != 0) {
+		float[] m = new float[4];
+		for (int j = 0; j < 4; j++) {
+		    m[j] = in.readFloat();
+		}
+		info.setMetrics(c, m);
+	    }
+	    if ((flags & HAS_NEXT_LARGER) != 0) {
+		final char larger = in.readChar();
+		info.setNextLarger(c, larger, in.readInt());
+	    }
+	    if ((flags & HAS_EXTENSION) != 0) {
+		int[] ext = new int[4];
+		for (int j = 0; j < 4; j++) {
+		    ext[j] = in.readInt();
+		}
+		info.setExtension(c, ext);
+	    }
+	}
+
+	info.kern.read(in);
+	info.lig.read(in);
+    }
+
+    /**
+     * Skips a font written by {@link #write(DataOutput)}, checking that the class containing
+     * its file can be found.
+     * @param in the input
+     */
+    static void skip(DataInput in) throws IOException {
+	readBase(in);
+	in.readUTF();
+	in.readUTF();
+	in.readInt();
+	in.readFloat();
+	in.readFloat();
+	in.readFloat();
+	for (int i = 0; i < 5; i++) {
+	    readVersion(in);
+	}
+	in.readChar();
+	final int len = in.readInt();
+	if (in.skipBytes(len) != len) {
+	    throw new IOException("Truncated font");
+	}
+    }
+
+    private static Class<?> readBase(DataInput in) throws IOException {
+	if (!in.readBoolean()) {
+	    return null;
+	}
+	final String className = in.readUTF();
+	try {
+	    // the class is only used to get a resource: it is neither initialized nor instantiated
+	    return Class.forName(className, false, FontInfo.class.getClassLoader());
+	} catch (ClassNotFoundException e) {
+	    throw new IOException("Cannot find the class " + className + " containing the font " + in.readUTF());
+	}
+    }
+
     public static Font getFont(int id) {
 	return fonts.get(id).getFont();
     }
+
+    /**
+     * Forgets all the registered fonts, this is used when the compiled resources cannot be
+     * read and the fonts are parsed again from the XML files.
+     */
+    static void clear() {
+	fonts.clear();
+    }
+
+    /**
+     * @param id the id of a font
+     * @return true if a font has been registered with this id
+     */
+    static boolean isRegistered(int id) {
+	return fonts.containsKey(id);
+    }
+
+    /**
+     * @param font a font returned by {@link #getFont(int)}
+     * @return the id of the font or -1 if it is unknown
+     */
+    public static int getFontId(Font font) {
+	for (FontInfo info : fonts.values()) {
+	    if (info.font == font) {
+		return info.fontId;
+	    }
+	}
+	return -1;
+    }
 }
 
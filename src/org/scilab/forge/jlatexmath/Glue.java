@@ -48,9 +48,15 @@ public class Glue {
     private static final int[][][] glueTable;
 
     static {
-        GlueSettingsParser parser = new GlueSettingsParser();
-        glueTypes = parser.getGlueTypes();
-        glueTable = parser.createGlueTable();
+        CompiledResources res = CompiledResources.get();
+        if (res != null) {
+            glueTypes = res.readGlueTypes();
+            glueTable = res.readGlueTable();
+        } else {
+            GlueSettingsParser parser = new GlueSettingsParser();
+            glueTypes = parser.getGlueTypes();
+            glueTable = parser.createGlueTable();
+        }
     }
 
     public Glue(float space, float stretch, float shrink, String name) {
@@ -60,6 +66,26 @@ public class Glue {
         this.name = name;
     }
 
+    static Glue[] getGlueTypes() {
+        return glueTypes;
+    }
+
+    static int[][][] getGlueTable() {
+        return glueTable;
+    }
+
+    float getSpace() {
+        return space;
+    }
+
+    float getStretch() {
+        return stretch;
+    }
+
+    float getShrink() {
+        return shrink;
+    }
+
     /**
      * Name of this glue object.
      */
@@ -32,9 +32,7 @@ package org.scilab.forge.jlatexmath;
 import com.dhsdevelopments.androidjlatexmath.swingcompat.Color;
 import com.dhsdevelopments.androidjlatexmath.swingcompat.Graphics2D;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 
 /**
  * A box composed of a horizontal row of child boxes.
@@ -90,10 +88,24 @@ public class HorizontalBox extends Box {
     }
 
     public void draw(Graphics2D g2, float x, float y) {
-        startDraw(g2, x, y);
+        Color prevColor = startDraw(g2, x, y);
         float xPos = x;
-        for (Box box: children) {
-            /*int i = children.indexOf(box);
+        for (int i = 0, n = children.size(); i < n; i++) {
+            Box box = children.get(i);
+            if (!DEBUG && box.getClass() == CharBox.class) {
+                // the consecutive chars with the same font and size are drawn in one call
+                CharBox cb = (CharBox) box;
+                int end = i + 1;
+                while (end < n && cb.isSameRun(children.get(end))) {
+                    end++;
+                }
+                if (end - i > 1) {
+                    xPos = CharBox.drawRun(g2, children, i, end, xPos, y);
+                    i = end - 1;
+                    continue;
+                }
+            }
+            /*
               if (breakPositions != null && breakPositions.indexOf(i) != -1) {
               box.markForDEBUG = java.awt.Color.BLUE;
               }*/
@@ -101,7 +113,7 @@ public class HorizontalBox extends Box {
             box.draw(g2, xPos, y + box.shift);
             xPos += box.getWidth();
         }
-        endDraw(g2);
+        endDraw(g2, prevColor);
     }
 
     public final void add(Box b) {
@@ -128,8 +140,8 @@ public class HorizontalBox extends Box {
         // iterate from the last child box to the first untill a font id is found
         // that's not equal to NO_FONT
         int fontId = TeXFont.NO_FONT;
-        for (ListIterator it = children.listIterator(children.size()); fontId == TeXFont.NO_FONT && it.hasPrevious();)
-            fontId = ((Box) it.previous()).getLastFontId();
+        for (int i = children.size() - 1; fontId == TeXFont.NO_FONT && i >= 0; i--)
+            fontId = children.get(i).getLastFontId();
 
         return fontId;
     }
@@ -0,0 +1,184 @@
+/* LRUCache.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU map counting its hits and its misses, shared by the caches of the parsed
+ * formulas and of the layouts. To avoid one lock for all the threads the entries are
+ * split by hash into segments having their own lock and their own part of the max size,
+ * so the least recently used entry is removed per segment: the order is exact only for
+ * the small caches, which have one segment.
+ */
+final class LRUCache<K, V> {
+
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 32;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile int maxSize;
+    private volatile Segment<K, V>[] segments;
+
+    LRUCache() {
+        segments = newSegments(0);
+    }
+
+    /**
+     * Set the max number of entries
+     * @param max the max size, 0 disables the cache
+     */
+    synchronized void setMaxSize(int max) {
+        max = Math.max(0, max);
+        Segment<K, V>[] old = segments;
+        Segment<K, V>[] segs = newSegments(max);
+        if (max != 0) {
+            // keep the most recently used entries
+            for (Segment<K, V> s : old) {
+                List<Map.Entry<K, V>> entries;
+                synchronized (s) {
+                    entries = new ArrayList<Map.Entry<K, V>>(s.entrySet());
+                }
+                for (Map.Entry<K, V> e : entries) {
+                    Segment<K, V> seg = segmentFor(segs, e.getKey());
+                    synchronized (seg) {
+                        seg.put(e.getKey(), e.getValue());
+                    }
+                }
+            }
+        }
+        maxSize = max;
+        segments = segs;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    boolean isEnabled() {
+        return maxSize != 0;
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment<K, V> s : segments) {
+            synchronized (s) {
+                size += s.size();
+            }
+        }
+
+        return size;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Remove all the entries and reset the counters
+     */
+    void clear() {
+        for (Segment<K, V> s : segments) {
+            synchronized (s) {
+                s.clear();
+            }
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    V get(K key) {
+        Segment<K, V> s = segmentFor(segments, key);
+        V v;
+        synchronized (s) {
+            v = s.get(key);
+        }
+        if (v == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+
+        return v;
+    }
+
+    void put(K key, V value) {
+        if (maxSize != 0) {
+            Segment<K, V> s = segmentFor(segments, key);
+            synchronized (s) {
+                s.put(key, value);
+            }
+        }
+    }
+
+    private static <K, V> Segment<K, V> segmentFor(Segment<K, V>[] segs, Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segs[h & (segs.length - 1)];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Segment<K, V>[] newSegments(int max) {
+        int n = 1;
+        while (n < MAX_SEGMENTS && 2 * n * MIN_SEGMENT_SIZE <= max) {
+            n <<= 1;
+        }
+        Segment<K, V>[] segs = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            segs[i] = new Segment<K, V>(max / n + (i < max % n ? 1 : 0));
+        }
+
+        return segs;
+    }
+
+    private static final class Segment<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int max;
+
+        Segment(int max) {
+            super(16, 0.75f, true);
+            this.max = max;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > max;
+        }
+    }
+}
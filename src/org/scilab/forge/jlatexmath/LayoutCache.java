@@ -0,0 +1,187 @@
+/* LayoutCache.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+/**
+ * A LRU cache of the boxes built from a formula. The key is the formula itself
+ * (its root atom and its number of modifications, or its source and the version of the
+ * global tables used to parse it when it is an unmodified copy of a formula of the
+ * {@link ParsedFormulaCache}), the {@link RenderContext}, the style,
+ * the size, the font type, the text width, the interline and the alignment used to build
+ * the box, and the version of the global tables ({@link MacroScope#getGlobalVersion()})
+ * which is changed when the symbols or the fonts are modified.
+ * <p>
+ * A cached box is shared between all the icons created with the same parameters, so
+ * it must not be modified.
+ * <p>
+ * The cache is disabled by default, use {@link #setMaxSize(int)} to enable it.
+ */
+public final class LayoutCache {
+
+    private static final LRUCache<Key, Layout> cache = new LRUCache<Key, Layout>();
+
+    private LayoutCache() { }
+
+    /**
+     * Set the max number of cached boxes
+     * @param max the max size, 0 disables the cache
+     */
+    public static void setMaxSize(int max) {
+        cache.setMaxSize(max);
+    }
+
+    public static int getMaxSize() {
+        return cache.getMaxSize();
+    }
+
+    public static int size() {
+        return cache.size();
+    }
+
+    public static long getHits() {
+        return cache.getHits();
+    }
+
+    public static long getMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * Remove all the cached boxes and reset the counters
+     */
+    public static void clear() {
+        cache.clear();
+    }
+
+    static boolean isEnabled() {
+        return cache.isEnabled();
+    }
+
+    static Layout get(Key key) {
+        return cache.get(key);
+    }
+
+    static void put(Key key, Layout l) {
+        if (key.version == MacroScope.getGlobalVersion()) {
+            cache.put(key, l);
+        }
+    }
+
+    /**
+     * A built box and the informations got from the environment during the build
+     */
+    static final class Layout {
+
+        final Box box;
+        final boolean isColored;
+
+        Layout(Box box, boolean isColored) {
+            this.box = box;
+            this.isColored = isColored;
+        }
+    }
+
+    /**
+     * The parameters used to build a box. The unset parameters must be given as -1.
+     */
+    static final class Key {
+
+        private final Atom root;
+        private final String source;
+        private final int modCount;
+        private final int version;
+        private final RenderContext context;
+        private final int style;
+        private final float size;
+        private final int type;
+        private final int widthUnit;
+        private final float textWidth;
+        private final int align;
+        private final boolean isMaxWidth;
+        private final int interlineUnit;
+        private final float interline;
+        private final int hash;
+
+        Key(TeXFormula f, RenderContext context, int style, float size, int type, int widthUnit, float textWidth, int align, boolean isMaxWidth, int interlineUnit, float interline) {
+            this.source = f.getCachedSource();
+            if (source == null) {
+                this.root = f.root;
+                this.modCount = f.modCount;
+            } else {
+                // the copies of the same cached formula share their layouts
+                this.root = null;
+                this.modCount = f.sourceVersion;
+            }
+            this.version = MacroScope.getGlobalVersion();
+            this.context = context;
+            this.style = style;
+            this.size = size;
+            this.type = type;
+            this.widthUnit = widthUnit;
+            this.textWidth = textWidth;
+            this.align = align;
+            this.isMaxWidth = isMaxWidth;
+            this.interlineUnit = interlineUnit;
+            this.interline = interline;
+
+            int h = source == null ? System.identityHashCode(root) : source.hashCode();
+            h = 31 * h + modCount;
+            h = 31 * h + version;
+            h = 31 * h + context.hashCode();
+            h = 31 * h + style;
+            h = 31 * h + Float.floatToIntBits(size);
+            h = 31 * h + type;
+            h = 31 * h + widthUnit;
+            h = 31 * h + Float.floatToIntBits(textWidth);
+            h = 31 * h + align;
+            h = 31 * h + (isMaxWidth ? 1 : 0);
+            h = 31 * h + interlineUnit;
+            h = 31 * h + Float.floatToIntBits(interline);
+            this.hash = h;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return root == k.root && modCount == k.modCount && version == k.version
+                && (source == null ? k.source == null : source.equals(k.source))
+                && context.equals(k.context)
+                && style == k.style && size == k.size && type == k.type
+                && widthUnit == k.widthUnit && textWidth == k.textWidth && align == k.align
+                && isMaxWidth == k.isMaxWidth && interlineUnit == k.interlineUnit
+                && interline == k.interline;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -29,16 +29,18 @@
 package org.scilab.forge.jlatexmath;
 
 import java.lang.reflect.Method;
-import java.lang.reflect.InvocationTargetException;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MacroInfo {
     
-    public static HashMap<String, MacroInfo> Commands = new HashMap<String, MacroInfo>(300);
-    public static HashMap<String, Object> Packages = new HashMap<String, Object>();
+    // the registries can be read while an other thread adds a command
+    public static Map<String, MacroInfo> Commands = new ConcurrentHashMap<String, MacroInfo>(300);
+    public static Map<String, Object> Packages = new ConcurrentHashMap<String, Object>();
 
     public Object pack;
     public Method macro;
+    public MacroHandler handler;
     public int nbArgs;
     public boolean hasOptions = false;
     public int posOpts;
@@ -47,6 +49,9 @@ public class MacroInfo {
 	this.pack = pack;
 	this.macro = macro;
 	this.nbArgs = nbArgs;
+	if (macro != null) {
+	    this.handler = new ReflectMacroHandler(pack, macro);
+	}
     }
 
     public MacroInfo(Object pack, Method macro, int nbArgs, int posOpts) {
@@ -55,6 +60,17 @@ public class MacroInfo {
 	this.posOpts = posOpts;
     }
 
+    public MacroInfo(MacroHandler handler, int nbArgs) {
+	this.handler = handler;
+	this.nbArgs = nbArgs;
+    }
+
+    public MacroInfo(MacroHandler handler, int nbArgs, int posOpts) {
+	this(handler, nbArgs);
+	this.hasOptions = true;
+	this.posOpts = posOpts;
+    }
+
     public MacroInfo(int nbArgs, int posOpts) {
 	this(null, (Method) null, nbArgs);
 	this.hasOptions = true;
@@ -66,41 +82,38 @@ public class MacroInfo {
     }
     
     public MacroInfo(String className, String methodName, float nbArgs) {
-	int nba = (int) nbArgs;
-	Class[] args = new Class[]{TeXParser.class, String[].class};
-	
-	try {
-	    Object pack = Packages.get(className);
-	    if (pack == null) {
-		Class<?> cl = Class.forName(className);
-		pack = cl.getConstructor(new Class[0]).newInstance(new Object[0]);
-		Packages.put(className, pack);
-	    }
-	    this.pack = pack;
-	    this.macro = pack.getClass().getDeclaredMethod(methodName, args);
-	    this.nbArgs = nba;
-	} catch (Exception e) {
-	    System.err.println("Cannot load package " + className + ":");
-	    System.err.println(e.toString());
-	}
+	this.nbArgs = (int) nbArgs;
+	bind(className, methodName);
     }
 
     public MacroInfo(String className, String methodName, float nbArgs, float posOpts) {
-	int nba = (int) nbArgs;
-	Class[] args = new Class[]{TeXParser.class, String[].class};
+	this.nbArgs = (int) nbArgs;
+	this.hasOptions = true;
+	this.posOpts = (int) posOpts;
+	bind(className, methodName);
+    }
 
+    /**
+     * Load the package className (only once) and get the handler of methodName.
+     * If the package implements MacroPackage, the handler it gives is called directly,
+     * else the method is called through the reflection.
+     */
+    private void bind(String className, String methodName) {
 	try {
 	    Object pack = Packages.get(className);
 	    if (pack == null) {
 		Class<?> cl = Class.forName(className);
-		pack = cl.getConstructor(new Class[0]).newInstance(new Object[0]);
+		pack = cl.getConstructor(new Class<?>[0]).newInstance(new Object[0]);
 		Packages.put(className, pack);
 	    }
 	    this.pack = pack;
-	    this.macro = pack.getClass().getDeclaredMethod(methodName, args);
-	    this.nbArgs = nba;
-	    this.hasOptions = true;
-	    this.posOpts = (int) posOpts;
+	    if (pack instanceof MacroPackage) {
+		this.handler = ((MacroPackage) pack).getMacroHandler(methodName);
+	    }
+	    if (this.handler == null) {
+		this.macro = pack.getClass().getDeclaredMethod(methodName, new Class<?>[]{TeXParser.class, String[].class});
+		this.handler = new ReflectMacroHandler(pack, macro);
+	    }
 	} catch (Exception e) {
 	    System.err.println("Cannot load package " + className + ":");
 	    System.err.println(e.toString());
@@ -108,16 +121,6 @@ public class MacroInfo {
     }
 
     public Object invoke(final TeXParser tp, final String[] args) throws ParseException {
-	Object[] argsMethod = {(Object) tp, (Object) args};
-	try {
-	    return macro.invoke(pack, argsMethod);
-	} catch (IllegalAccessException e) {
-	    throw new ParseException("Problem with command " + args[0] + " at position " + tp.getLine() + ":" + tp.getCol() + "\n", e);
-	} catch (IllegalArgumentException e) {
-	    throw new ParseException("Problem with command " + args[0] + " at position " + tp.getLine() + ":" + tp.getCol() + "\n", e);
-	} catch (InvocationTargetException e) {
-	    Throwable th = e.getCause();
-	    throw new ParseException("Problem with command " + args[0] + " at position " + tp.getLine() + ":" + tp.getCol() + "\n" + th.getMessage());
-	}
+	return handler.handle(tp, args);
     }
 }
\ No newline at end of file
@@ -0,0 +1,220 @@
+/* MacroScope.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+import com.dhsdevelopments.androidjlatexmath.swingcompat.Color;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The commands visible by a parser. The global scope is the table MacroInfo.Commands,
+ * an other scope is an overlay on its parent: the commands defined with \newcommand,
+ * \renewcommand, \newenvironment or \renewenvironment are only put in the overlay,
+ * so a formula parsed with its own scope can't redefine the commands of the others.
+ * In the same way, the colors defined with \definecolor are only put in the overlay
+ * and are looked up before the ones of ColorAtom.Colors.
+ * <p>
+ * Example:
+ * <pre>
+ * TeXFormula f = TeXFormula.make("\\newcommand{\\foo}{bar}\\foo", new MacroScope());
+ * </pre>
+ */
+public class MacroScope {
+
+    /**
+     * The process-wide scope
+     */
+    public static final MacroScope GLOBAL = new MacroScope(null, null);
+
+    private static final AtomicInteger globalVersion = new AtomicInteger();
+
+    private final MacroScope parent;
+    private final Map<String, MacroInfo> commands;
+    private final Map<String, Color> colors;
+
+    // number of the commands and colors put in this scope, the parsers of several threads can share a scope
+    private final AtomicInteger modCount = new AtomicInteger();
+
+    private MacroScope(MacroScope parent, Map<String, MacroInfo> commands) {
+        this.parent = parent;
+        this.commands = commands;
+        this.colors = commands == null ? null : new ConcurrentHashMap<String, Color>();
+    }
+
+    /**
+     * Create a new scope above the global one
+     */
+    public MacroScope() {
+        this(GLOBAL);
+    }
+
+    /**
+     * Create a new scope above the given one
+     * @param parent the parent scope
+     */
+    public MacroScope(MacroScope parent) {
+        this(parent == null ? GLOBAL : parent, new ConcurrentHashMap<String, MacroInfo>());
+    }
+
+    /**
+     * @return true if this scope is the process-wide one
+     */
+    public boolean isGlobal() {
+        return commands == null;
+    }
+
+    /**
+     * @return the parent scope or null for the global one
+     */
+    public MacroScope getParent() {
+        return parent;
+    }
+
+    /**
+     * Get a command
+     * @param name the command name
+     * @return the MacroInfo of the command in this scope or in one of its parents, null if not found
+     */
+    public MacroInfo get(String name) {
+        if (commands == null) {
+            return MacroInfo.Commands.get(name);
+        }
+
+        MacroInfo mac = commands.get(name);
+        if (mac != null) {
+            return mac;
+        }
+
+        return parent.get(name);
+    }
+
+    /**
+     * Get a named color
+     * @param name the color name
+     * @return the color defined in this scope or in one of its parents, null if not found
+     */
+    public Color getColor(String name) {
+        if (colors == null) {
+            return ColorAtom.Colors.get(name);
+        }
+
+        Color c = colors.get(name);
+        if (c != null) {
+            return c;
+        }
+
+        return parent.getColor(name);
+    }
+
+    /**
+     * Put a named color in this scope
+     * @param name the color name
+     * @param color the color
+     */
+    public void putColor(String name, Color color) {
+        if (colors == null) {
+            ColorAtom.Colors.put(name, color);
+            globalChanged();
+        } else {
+            colors.put(name, color);
+            modCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if commands have been defined in this scope or in one of its parents
+     * (the global scope excepted)
+     */
+    public boolean hasOwnCommands() {
+        if (commands == null) {
+            return false;
+        }
+
+        return !commands.isEmpty() || parent.hasOwnCommands();
+    }
+
+    /**
+     * @return a number which changes each time a global command, symbol, color or
+     * predefined formula is (re)defined
+     */
+    public static int getGlobalVersion() {
+        return globalVersion.get();
+    }
+
+    /**
+     * @return a number which changes each time a command or a color is defined in this
+     * scope, in one of its parents or in the global tables
+     */
+    public int getVersion() {
+        if (commands == null) {
+            return globalVersion.get();
+        }
+
+        return modCount.get() + parent.getVersion();
+    }
+
+    /**
+     * Indicate that a global table used by the parser has been modified
+     */
+    static void globalChanged() {
+        globalVersion.incrementAndGet();
+    }
+
+    /**
+     * @param name the command name
+     * @return true if the command is a user-defined macro
+     */
+    public boolean isMacro(String name) {
+        MacroInfo mac = get(name);
+        return mac != null && mac.handler instanceof NewCommandMacro.Handler;
+    }
+
+    /**
+     * Put a command in this scope
+     * @param name the command name
+     * @param mac the command
+     */
+    public void put(String name, MacroInfo mac) {
+        if (commands == null) {
+            MacroInfo.Commands.put(name, mac);
+            globalChanged();
+        } else {
+            commands.put(name, mac);
+            modCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Create a new scope above this one
+     */
+    public MacroScope newScope() {
+        return new MacroScope(this);
+    }
+}
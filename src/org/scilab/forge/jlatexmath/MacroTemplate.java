@@ -0,0 +1,147 @@
+/* MacroTemplate.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The code of a user-defined macro compiled once into literal runs and argument slots
+ * (#1 to #9), so that the expansion is made in one pass in a pre-sized buffer.
+ */
+final class MacroTemplate {
+
+    private final String[] literals;
+    private final int[] slots;
+    private final int literalLength;
+
+    MacroTemplate(String code) {
+        List<String> lits = new ArrayList<String>();
+        List<Integer> sl = new ArrayList<Integer>();
+        int len = code.length();
+        int start = 0;
+        int litLen = 0;
+        for (int i = 0; i < len - 1; i++) {
+            char c = code.charAt(i + 1);
+            if (code.charAt(i) == '#' && c >= '1' && c <= '9') {
+                String lit = code.substring(start, i);
+                lits.add(lit);
+                litLen += lit.length();
+                sl.add(Integer.valueOf(c - '0'));
+                start = i + 2;
+                i++;
+            }
+        }
+        String lit = code.substring(start);
+        lits.add(lit);
+        litLen += lit.length();
+
+        this.literals = lits.toArray(new String[lits.size()]);
+        this.slots = new int[sl.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = sl.get(i).intValue();
+        }
+        this.literalLength = litLen;
+    }
+
+    /**
+     * Expand the template
+     * @param values the replacement of #i is values[i], values[0] is unused
+     * @param nb the number of available values
+     * @return the expanded code, a slot without value is left unchanged
+     */
+    String expand(String[] values, int nb) {
+        if (slots.length == 0) {
+            return literals[0];
+        }
+
+        int size = literalLength;
+        for (int i = 0; i < slots.length; i++) {
+            int s = slots[i];
+            if (s > nb) {
+                size += 2;
+            } else if (values[s] != null) {
+                size += values[s].length();
+            }
+        }
+
+        StringBuilder buf = new StringBuilder(size);
+        for (int i = 0; i < slots.length; i++) {
+            buf.append(literals[i]);
+            int s = slots[i];
+            if (s <= nb) {
+                if (values[s] != null) {
+                    buf.append(values[s]);
+                }
+            } else {
+                buf.append('#').append((char) ('0' + s));
+            }
+        }
+        buf.append(literals[slots.length]);
+
+        return buf.toString();
+    }
+
+    /**
+     * Expand the template with the views on the arguments given by the parser, the
+     * arguments are copied from the parsed text into the expansion
+     * @param values the replacement of #i is the value i, the value 0 is unused
+     * @param nb the number of available values
+     * @return the expanded code, a slot without value is left unchanged
+     */
+    String expand(Arguments values, int nb) {
+        if (slots.length == 0) {
+            return literals[0];
+        }
+
+        int size = literalLength;
+        for (int i = 0; i < slots.length; i++) {
+            int s = slots[i];
+            if (s > nb) {
+                size += 2;
+            } else {
+                size += values.length(s);
+            }
+        }
+
+        StringBuilder buf = new StringBuilder(size);
+        for (int i = 0; i < slots.length; i++) {
+            buf.append(literals[i]);
+            int s = slots[i];
+            if (s <= nb) {
+                values.appendTo(buf, s);
+            } else {
+                buf.append('#').append((char) ('0' + s));
+            }
+        }
+        buf.append(literals[slots.length]);
+
+        return buf.toString();
+    }
+}
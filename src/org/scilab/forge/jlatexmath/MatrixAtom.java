@@ -72,11 +72,19 @@ public class MatrixAtom extends Atom {
      *
      */
     public MatrixAtom(boolean isPartial, ArrayOfAtoms array, String options, boolean spaceAround) {
+        this(isPartial, array, options, spaceAround, null);
+    }
+
+    /**
+     * Creates an empty matrix, the commands used in the options are looked up in the given scope
+     *
+     */
+    public MatrixAtom(boolean isPartial, ArrayOfAtoms array, String options, boolean spaceAround, MacroScope scope) {
         this.isPartial = isPartial;
         this.matrix = array;
         this.type = ARRAY;
         this.spaceAround = spaceAround;
-        parsePositions(new StringBuffer(options));
+        parsePositions(new StringBuffer(options), scope);
     }
 
     /**
@@ -141,7 +149,7 @@ public class MatrixAtom extends Atom {
         this(false, array, type);
     }
 
-    private void parsePositions(StringBuffer opt) {
+    private void parsePositions(StringBuffer opt, MacroScope scope) {
         int len = opt.length();
         int pos = 0;
         char ch;
@@ -177,6 +185,7 @@ public class MatrixAtom extends Atom {
                 pos++;
                 tf = TeXFormula.make();
                 tp = new TeXParser(isPartial, opt.substring(pos), tf, false);
+                tp.setMacroScope(scope);
                 Atom at = tp.getArgument();
                 matrix.col++;
                 for (int j = 0; j < matrix.row; j++) {
@@ -191,6 +200,7 @@ public class MatrixAtom extends Atom {
                 pos++;
                 tf = TeXFormula.make();
                 tp = new TeXParser(isPartial, opt.substring(pos), tf, false);
+                tp.setMacroScope(scope);
                 String[] args = tp.getOptsArgs(2, 0);
                 pos += tp.getPos();
                 int nrep =  Integer.parseInt(args[1]);
@@ -28,65 +28,124 @@
 
 package org.scilab.forge.jlatexmath;
 
-import java.util.HashMap;
-import java.util.regex.Matcher;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class NewCommandMacro {
 
-    protected static HashMap<String, String> macrocode = new HashMap<String, String>();
-    protected static HashMap<String, String> macroreplacement = new HashMap<String, String>();
+    // code and default option of the macros defined in the global scope
+    protected static Map<String, String> macrocode = new ConcurrentHashMap<String, String>();
+    protected static Map<String, String> macroreplacement = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The handler of one definition: it holds the compiled code and the default option,
+     * so a macro is entirely published when its MacroInfo is put in a scope.
+     */
+    static final class Handler implements MacroHandler {
+
+	final String code;
+	final MacroTemplate template;
+	final String def;
+
+	Handler(String code, String def) {
+	    this.code = code;
+	    this.template = new MacroTemplate(code);
+	    this.def = def;
+	}
+
+	public Object handle(TeXParser tp, String[] args) {
+	    int nbargs = args.length - 11;
+	    String opt = args[nbargs + 1];
+
+	    if (opt == null) {
+		opt = def;
+	    }
+
+	    if (opt == null) {
+		return template.expand(args, nbargs);
+	    }
+
+	    // the option is #1 and the arguments are shifted
+	    String[] values = new String[nbargs + 2];
+	    values[1] = opt;
+	    System.arraycopy(args, 1, values, 2, nbargs);
+
+	    return template.expand(values, nbargs + 1);
+	}
+
+	/**
+	 * Expand the macro with the views on its arguments, as handle does with strings
+	 * @param args the views given by the parser, they are modified
+	 * @param nbargs the number of arguments of the macro
+	 * @return the expanded code
+	 */
+	String expand(Arguments args, int nbargs) {
+	    if (!args.isSet(nbargs + 1)) {
+		if (def == null) {
+		    return template.expand(args, nbargs);
+		}
+		args.set(nbargs + 1, def);
+	    }
+
+	    // the option is #1 and the arguments are shifted
+	    args.moveToFirst(nbargs + 1);
+	    return template.expand(args, nbargs + 1);
+	}
+    }
 
     public NewCommandMacro() {
     }
     
     public static void addNewCommand(String name, String code, int nbargs) throws ParseException {
-	//if (macrocode.get(name) != null)
-	//throw new ParseException("Command " + name + " already exists ! Use renewcommand instead ...");
-	macrocode.put(name, code);
-	MacroInfo.Commands.put(name, new MacroInfo("org.scilab.forge.jlatexmath.NewCommandMacro", "executeMacro", nbargs));
+	addNewCommand(MacroScope.GLOBAL, name, code, nbargs);
     }
     
     public static void addNewCommand(String name, String code, int nbargs, String def) throws ParseException {
-	if (macrocode.get(name) != null)
-	    throw new ParseException("Command " + name + " already exists ! Use renewcommand instead ...");
-	macrocode.put(name, code);
-	macroreplacement.put(name, def);
-	MacroInfo.Commands.put(name, new MacroInfo("org.scilab.forge.jlatexmath.NewCommandMacro", "executeMacro", nbargs, 1));
+	addNewCommand(MacroScope.GLOBAL, name, code, nbargs, def);
     }
     
-    public static boolean isMacro(String name) {
-	return macrocode.containsKey(name);
+    public static void addReNewCommand(String name, String code, int nbargs) {
+	addReNewCommand(MacroScope.GLOBAL, name, code, nbargs);
     }
     
-    public static void addReNewCommand(String name, String code, int nbargs) {
-	if (macrocode.get(name) == null)
-	    throw new ParseException("Command " + name + " is not defined ! Use newcommand instead ...");
-	macrocode.put(name, code);
-	MacroInfo.Commands.put(name, new MacroInfo("org.scilab.forge.jlatexmath.NewCommandMacro", "executeMacro", nbargs));
+    public static void addNewCommand(MacroScope scope, String name, String code, int nbargs) throws ParseException {
+	//if (scope.isMacro(name))
+	//throw new ParseException("Command " + name + " already exists ! Use renewcommand instead ...");
+	define(scope, name, code, nbargs, null);
     }
     
-    public String executeMacro(TeXParser tp, String[] args) {
-	String code = macrocode.get(args[0]);
-	String rep;
-	int nbargs = args.length - 11;
-	int dec = 0;
-	
-	
-	if (args[nbargs + 1] != null) {
-	    dec = 1;
-	    rep = Matcher.quoteReplacement(args[nbargs + 1]);
-	    code = code.replaceAll("#1", rep);
-	} else if (macroreplacement.get(args[0]) != null) {
-	    dec = 1;
-	    rep = Matcher.quoteReplacement(macroreplacement.get(args[0]));
-	    code = code.replaceAll("#1", rep);
-	}
+    public static void addNewCommand(MacroScope scope, String name, String code, int nbargs, String def) throws ParseException {
+	if (scope.isMacro(name))
+	    throw new ParseException("Command " + name + " already exists ! Use renewcommand instead ...");
+	define(scope, name, code, nbargs, def);
+    }
+    
+    public static void addReNewCommand(MacroScope scope, String name, String code, int nbargs) {
+	if (!scope.isMacro(name))
+	    throw new ParseException("Command " + name + " is not defined ! Use newcommand instead ...");
+	define(scope, name, code, nbargs, null);
+    }
 
-	for (int i = 1; i <= nbargs; i++) {
-	    rep = Matcher.quoteReplacement(args[i]);
-	    code = code.replaceAll("#" + (i + dec), rep);
+    static void define(MacroScope scope, String name, String code, int nbargs, String def) {
+	Handler handler = new Handler(code, def);
+	if (scope.isGlobal()) {
+	    if (def != null) {
+		macroreplacement.put(name, def);
+	    }
+	    macrocode.put(name, code);
+	}
+	if (def == null) {
+	    scope.put(name, new MacroInfo(handler, nbargs));
+	} else {
+	    scope.put(name, new MacroInfo(handler, nbargs, 1));
 	}
-	
-	return code;
+    }
+    
+    public static boolean isMacro(String name) {
+	return MacroScope.GLOBAL.isMacro(name);
+    }
+    
+    public String executeMacro(TeXParser tp, String[] args) {
+	return (String) tp.getMacroScope().get(args[0]).invoke(tp, args);
     }
 }
\ No newline at end of file
@@ -37,14 +37,22 @@ public class NewEnvironmentMacro extends NewCommandMacro {
     }
     
     public static void addNewEnvironment(String name, String begdef, String enddef, int nbArgs) throws ParseException {
-	//if (macrocode.get(name + "@env") != null)
-	//throw new ParseException("Environment " + name + " already exists ! Use renewenvironment instead ...");
-	addNewCommand(name + "@env", begdef + " #" + (nbArgs + 1) + " " + enddef, nbArgs + 1);
+	addNewEnvironment(MacroScope.GLOBAL, name, begdef, enddef, nbArgs);
     }
 
     public static void addReNewEnvironment(String name, String begdef, String enddef, int nbArgs) throws ParseException {
-	if (macrocode.get(name + "@env") == null)
+	addReNewEnvironment(MacroScope.GLOBAL, name, begdef, enddef, nbArgs);
+    }
+
+    public static void addNewEnvironment(MacroScope scope, String name, String begdef, String enddef, int nbArgs) throws ParseException {
+	//if (scope.isMacro(name + "@env"))
+	//throw new ParseException("Environment " + name + " already exists ! Use renewenvironment instead ...");
+	addNewCommand(scope, name + "@env", begdef + " #" + (nbArgs + 1) + " " + enddef, nbArgs + 1);
+    }
+
+    public static void addReNewEnvironment(MacroScope scope, String name, String begdef, String enddef, int nbArgs) throws ParseException {
+	if (!scope.isMacro(name + "@env"))
 	    throw new ParseException("Environment " + name + "is not defined ! Use newenvironment instead ...");
-	addReNewCommand(name + "@env", begdef + " #" + (nbArgs + 1) + " " + enddef, nbArgs + 1);
+	addReNewCommand(scope, name + "@env", begdef + " #" + (nbArgs + 1) + " " + enddef, nbArgs + 1);
     }
 }
\ No newline at end of file
@@ -0,0 +1,138 @@
+/* ParseBuffer.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+/**
+ * The string parsed by a {@link TeXParser}: a gap buffer. The parser replaces the text it
+ * has just read (a macro with its arguments, a superscript char, ...) by its expansion and
+ * reads it again, so the edits are always around the current position. The gap is kept at
+ * the last edit and an edit only moves the chars between the previous edit and this one,
+ * instead of the whole end of the string: the expansion stays linear in the length of
+ * the input and of the expanded text.
+ */
+final class ParseBuffer implements CharSequence {
+
+    private char[] buf;
+    // the gap is [gapStart, gapEnd) in buf, gapStart is also the position of the gap in the text
+    private int gapStart;
+    private int gapEnd;
+
+    ParseBuffer(String s) {
+        final int n = s.length();
+        buf = new char[n + 16];
+        gapStart = 0;
+        gapEnd = buf.length - n;
+        s.getChars(0, n, buf, gapEnd);
+    }
+
+    public int length() {
+        return buf.length - gapEnd + gapStart;
+    }
+
+    public char charAt(int index) {
+        return index < gapStart ? buf[index] : buf[index + gapEnd - gapStart];
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        return substring(start, end);
+    }
+
+    public String substring(int start) {
+        return substring(start, length());
+    }
+
+    public String substring(int start, int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new StringIndexOutOfBoundsException("Invalid range: [" + start + ", " + end + ")");
+        }
+        if (end <= gapStart) {
+            return new String(buf, start, end - start);
+        }
+        final int gap = gapEnd - gapStart;
+        if (start >= gapStart) {
+            return new String(buf, start + gap, end - start);
+        }
+
+        final char[] chars = new char[end - start];
+        System.arraycopy(buf, start, chars, 0, gapStart - start);
+        System.arraycopy(buf, gapEnd, chars, gapStart - start, end - gapStart);
+        return new String(chars);
+    }
+
+    /**
+     * Replace the text in [start, end) by str
+     */
+    void replace(int start, int end, String str) {
+        if (start < 0 || end > length() || start > end) {
+            throw new StringIndexOutOfBoundsException("Invalid range: [" + start + ", " + end + ")");
+        }
+        moveGap(end);
+        // remove [start, end) by widening the gap
+        gapStart = start;
+        final int n = str.length();
+        ensureGap(n);
+        // the new text is put at the end of the gap, so the gap stays at start and the
+        // text is read again from start
+        gapEnd -= n;
+        str.getChars(0, n, buf, gapEnd);
+    }
+
+    void delete(int start, int end) {
+        replace(start, end, "");
+    }
+
+    private void moveGap(int index) {
+        if (index > gapStart) {
+            final int n = index - gapStart;
+            System.arraycopy(buf, gapEnd, buf, gapStart, n);
+            gapStart += n;
+            gapEnd += n;
+        } else if (index < gapStart) {
+            final int n = gapStart - index;
+            System.arraycopy(buf, index, buf, gapEnd - n, n);
+            gapStart -= n;
+            gapEnd -= n;
+        }
+    }
+
+    private void ensureGap(int n) {
+        if (gapEnd - gapStart < n) {
+            final int tail = buf.length - gapEnd;
+            final char[] b = new char[Math.max(2 * buf.length, gapStart + n + tail + 16)];
+            System.arraycopy(buf, 0, b, 0, gapStart);
+            System.arraycopy(buf, gapEnd, b, b.length - tail, tail);
+            gapEnd = b.length - tail;
+            buf = b;
+        }
+    }
+
+    public String toString() {
+        return substring(0, length());
+    }
+}
@@ -0,0 +1,351 @@
+/* ParseLimits.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The resources a formula may use when it is parsed and laid out: the length of the
+ * input string, the number of macro expansions, the length of the expanded string,
+ * the nesting depth of the groups, the number of atoms and boxes and the time spent.
+ * When a limit is exceeded a {@link LimitExceededException} is thrown, even in partial mode.
+ * <p>
+ * Limits are immutable. They are given to {@link TeXFormula#make(String, ParseLimits)}, the
+ * other formulas use the default limits ({@link #getDefault()}), which only bound the macro
+ * expansions and the nesting depth. All the formulas parsed while a formula is parsed (the arguments of the commands,
+ * the bodies of the macros, ...) share the budget of this formula.
+ */
+public final class ParseLimits {
+
+    /**
+     * No limit at all
+     */
+    public static final ParseLimits UNLIMITED = new ParseLimits(0, 0, 0, 0, 0, 0, 0);
+
+    /**
+     * The nesting depth of the default limits, a deeper formula would overflow the stack
+     * of the parser or of the layout
+     */
+    public static final int DEFAULT_MAX_DEPTH = 500;
+
+    private static volatile ParseLimits defaultLimits = initialDefault();
+
+    // the budget of the parse or the layout in progress in the current thread
+    private static final ThreadLocal<Budget> current = new ThreadLocal<Budget>();
+
+    // the number of threads where the atoms or the boxes must be counted
+    private static final AtomicInteger counting = new AtomicInteger();
+
+    private final int maxInputLength;
+    private final int maxExpansions;
+    private final int maxExpandedLength;
+    private final int maxDepth;
+    private final int maxAtoms;
+    private final int maxBoxes;
+    private final long timeout;
+
+    private ParseLimits(int maxInputLength, int maxExpansions, int maxExpandedLength, int maxDepth, int maxAtoms, int maxBoxes, long timeout) {
+        this.maxInputLength = maxInputLength <= 0 ? Integer.MAX_VALUE : maxInputLength;
+        this.maxExpansions = maxExpansions <= 0 ? Integer.MAX_VALUE : maxExpansions;
+        this.maxExpandedLength = maxExpandedLength <= 0 ? Integer.MAX_VALUE : maxExpandedLength;
+        this.maxDepth = maxDepth <= 0 ? Integer.MAX_VALUE : maxDepth;
+        this.maxAtoms = maxAtoms <= 0 ? Integer.MAX_VALUE : maxAtoms;
+        this.maxBoxes = maxBoxes <= 0 ? Integer.MAX_VALUE : maxBoxes;
+        this.timeout = timeout <= 0 ? 0 : timeout;
+    }
+
+    /**
+     * @return the limits used by the formulas parsed without explicit limits
+     */
+    public static ParseLimits getDefault() {
+        return defaultLimits;
+    }
+
+    /**
+     * Set the limits used by the formulas parsed without explicit limits
+     * @param limits the limits, null to restore the initial ones
+     */
+    public static void setDefault(ParseLimits limits) {
+        defaultLimits = limits == null ? initialDefault() : limits;
+    }
+
+    private static ParseLimits initialDefault() {
+        // a recursive macro would be expanded forever
+        return new ParseLimits(0, 100000, 1 << 22, DEFAULT_MAX_DEPTH, 0, 0, 0);
+    }
+
+    /**
+     * @param max the maximal length of the string to parse, 0 for no limit
+     * @return a copy of these limits with the given input length
+     */
+    public ParseLimits deriveMaxInputLength(int max) {
+        return new ParseLimits(max, maxExpansions, maxExpandedLength, maxDepth, maxAtoms, maxBoxes, timeout);
+    }
+
+    /**
+     * @param max the maximal number of macro expansions, 0 for no limit
+     * @return a copy of these limits with the given number of expansions
+     */
+    public ParseLimits deriveMaxExpansions(int max) {
+        return new ParseLimits(maxInputLength, max, maxExpandedLength, maxDepth, maxAtoms, maxBoxes, timeout);
+    }
+
+    /**
+     * @param max the maximal length of a string after the expansion of its macros, 0 for no limit
+     * @return a copy of these limits with the given expanded length
+     */
+    public ParseLimits deriveMaxExpandedLength(int max) {
+        return new ParseLimits(maxInputLength, maxExpansions, max, maxDepth, maxAtoms, maxBoxes, timeout);
+    }
+
+    /**
+     * @param max the maximal nesting depth of the groups, 0 for no limit
+     * @return a copy of these limits with the given depth
+     */
+    public ParseLimits deriveMaxDepth(int max) {
+        return new ParseLimits(maxInputLength, maxExpansions, maxExpandedLength, max, maxAtoms, maxBoxes, timeout);
+    }
+
+    /**
+     * @param max the maximal number of atoms created by the parse, 0 for no limit
+     * @return a copy of these limits with the given number of atoms
+     */
+    public ParseLimits deriveMaxAtoms(int max) {
+        return new ParseLimits(maxInputLength, maxExpansions, maxExpandedLength, maxDepth, max, maxBoxes, timeout);
+    }
+
+    /**
+     * @param max the maximal number of boxes created by the layout, 0 for no limit
+     * @return a copy of these limits with the given number of boxes
+     */
+    public ParseLimits deriveMaxBoxes(int max) {
+        return new ParseLimits(maxInputLength, maxExpansions, maxExpandedLength, maxDepth, maxAtoms, max, timeout);
+    }
+
+    /**
+     * @param millis the time allowed to the parse and to the layout (each one), 0 for no limit
+     * @return a copy of these limits with the given time
+     */
+    public ParseLimits deriveTimeout(long millis) {
+        return new ParseLimits(maxInputLength, maxExpansions, maxExpandedLength, maxDepth, maxAtoms, maxBoxes, millis);
+    }
+
+    public int getMaxInputLength() {
+        return maxInputLength;
+    }
+
+    public int getMaxExpansions() {
+        return maxExpansions;
+    }
+
+    public int getMaxExpandedLength() {
+        return maxExpandedLength;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getMaxAtoms() {
+        return maxAtoms;
+    }
+
+    public int getMaxBoxes() {
+        return maxBoxes;
+    }
+
+    /**
+     * @return the time in milliseconds allowed to the parse and to the layout, or 0
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return true if the atoms and the boxes must be counted
+     */
+    boolean needsCounting() {
+        return maxBoxes != Integer.MAX_VALUE || maxAtoms != Integer.MAX_VALUE || timeout != 0;
+    }
+
+    /**
+     * Get the budget of a new parser: the budget of the parse in progress in this
+     * thread or a new one made from the limits of the formula
+     * @param formula the formula filled by the parser
+     * @param length the length of the string to parse
+     * @return the budget
+     * @throws LimitExceededException if the string is too long
+     */
+    static Budget getBudget(TeXFormula formula, int length) throws LimitExceededException {
+        Budget b = current.get();
+        if (b == null) {
+            ParseLimits limits = formula != null && formula.limits != null ? formula.limits : defaultLimits;
+            b = new Budget(limits);
+            if (length > limits.maxInputLength) {
+                throw new LimitExceededException("The formula is too long (" + length + " characters, the maximum is " + limits.maxInputLength + ")");
+            }
+        }
+        return b;
+    }
+
+    /**
+     * @return the budget of the parse or the layout in progress in this thread, or null
+     */
+    static Budget current() {
+        return current.get();
+    }
+
+    /**
+     * Make the given budget the one of this thread
+     * @param b the budget
+     * @return the previous budget, to give to {@link #exit(Budget, Budget)}
+     */
+    static Budget enter(Budget b) {
+        Budget outer = current.get();
+        if (outer != b) {
+            install(outer, b);
+        }
+        return outer;
+    }
+
+    /**
+     * Restore the budget replaced by {@link #enter(Budget)}
+     */
+    static void exit(Budget b, Budget outer) {
+        if (outer != b) {
+            install(b, outer);
+        }
+    }
+
+    private static void install(Budget previous, Budget b) {
+        if (b == null) {
+            current.remove();
+        } else {
+            current.set(b);
+        }
+        if (previous != null && previous.counts) {
+            counting.decrementAndGet();
+        }
+        if (b != null && b.counts) {
+            counting.incrementAndGet();
+        }
+    }
+
+    /**
+     * Called each time an atom is created
+     */
+    static void atomCreated() {
+        if (counting.get() != 0) {
+            Budget b = current.get();
+            if (b != null && b.counts) {
+                b.atom();
+            }
+        }
+    }
+
+    /**
+     * Called each time a box is created
+     */
+    static void boxCreated() {
+        if (counting.get() != 0) {
+            Budget b = current.get();
+            if (b != null && b.counts) {
+                b.box();
+            }
+        }
+    }
+
+    /**
+     * The resources used by a parse or a layout
+     */
+    static final class Budget {
+
+        final ParseLimits limits;
+        final boolean counts;
+        private final long deadline;
+        private int expansions;
+        private int depth;
+        private int atoms;
+        private int boxes;
+        private int ticks;
+
+        Budget(ParseLimits limits) {
+            this.limits = limits;
+            this.counts = limits.needsCounting();
+            this.deadline = limits.timeout == 0 ? 0 : System.nanoTime() + limits.timeout * 1000000L;
+        }
+
+        /**
+         * Called each time a macro is expanded
+         * @param length the length of the string after the expansion
+         */
+        void expansion(int length) throws LimitExceededException {
+            if (++expansions > limits.maxExpansions) {
+                throw new LimitExceededException("Too many macro expansions (" + limits.maxExpansions + "), a macro is probably recursive");
+            }
+            if (length > limits.maxExpandedLength) {
+                throw new LimitExceededException("The expanded formula is too long (" + length + " characters), a macro is probably recursive");
+            }
+            tick();
+        }
+
+        void enterGroup() throws LimitExceededException {
+            if (++depth > limits.maxDepth) {
+                depth--;
+                throw new LimitExceededException("The groups are nested too deeply (" + limits.maxDepth + ")");
+            }
+            tick();
+        }
+
+        void exitGroup() {
+            depth--;
+        }
+
+        void atom() throws LimitExceededException {
+            if (++atoms > limits.maxAtoms) {
+                throw new LimitExceededException("Too many atoms (" + limits.maxAtoms + ")");
+            }
+            tick();
+        }
+
+        void box() throws LimitExceededException {
+            if (++boxes > limits.maxBoxes) {
+                throw new LimitExceededException("Too many boxes (" + limits.maxBoxes + ")");
+            }
+            tick();
+        }
+
+        // nanoTime is not called for each atom or box
+        private void tick() throws LimitExceededException {
+            if (deadline != 0 && (++ticks & 0x3F) == 0 && System.nanoTime() - deadline > 0) {
+                throw new LimitExceededException("The formula takes too much time (more than " + limits.timeout + " ms)");
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/* ParsedFormulaCache.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+/**
+ * A LRU cache of the formulas parsed by {@link TeXFormula#make(String)}. The key is
+ * the LaTeX source and the version of the global tables ({@link MacroScope#getGlobalVersion()}),
+ * so a cached formula is never used once a command it could use has been redefined.
+ * A formula which modifies the global tables when it is parsed (e.g. with \newcommand)
+ * is not cached.
+ * <p>
+ * The cached formula is never given: {@link TeXFormula#make(String)} returns a deep copy
+ * of its atoms, so the copies can be modified and laid out concurrently.
+ * <p>
+ * The cache is disabled by default, use {@link #setMaxSize(int)} to enable it.
+ */
+public final class ParsedFormulaCache {
+
+    private static final LRUCache<Key, TeXFormula> cache = new LRUCache<Key, TeXFormula>();
+
+    private ParsedFormulaCache() { }
+
+    /**
+     * Set the max number of cached formulas
+     * @param max the max size, 0 disables the cache
+     */
+    public static void setMaxSize(int max) {
+        cache.setMaxSize(max);
+    }
+
+    public static int getMaxSize() {
+        return cache.getMaxSize();
+    }
+
+    public static int size() {
+        return cache.size();
+    }
+
+    public static long getHits() {
+        return cache.getHits();
+    }
+
+    public static long getMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * Remove all the cached formulas and reset the counters
+     */
+    public static void clear() {
+        cache.clear();
+    }
+
+    static boolean isEnabled() {
+        return cache.isEnabled();
+    }
+
+    static TeXFormula get(String latex, int version) {
+        return cache.get(new Key(latex, version));
+    }
+
+    static void put(String latex, int version, TeXFormula f) {
+        // setLaTeX would modify the atoms shared by the copies
+        if (f.parser.isIncremental()) {
+            throw new IllegalArgumentException("An incremental formula can't be cached");
+        }
+        cache.put(new Key(latex, version), f);
+    }
+
+    private static final class Key {
+
+        private final String latex;
+        private final int version;
+        private final int hash;
+
+        Key(String latex, int version) {
+            this.latex = latex;
+            this.version = version;
+            this.hash = 31 * latex.hashCode() + version;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return version == k.version && latex.equals(k.latex);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -558,6 +558,8 @@ class PredefMacroInfo extends MacroInfo {
             default:
                 return null;
             }
+        } catch (LimitExceededException e) {
+            throw e;
         } catch (Exception e) {
             throw new ParseException("Problem with command " + args[0] + " at position " + tp.getLine() + ":" + tp.getCol() + "\n" + e.getMessage());
         }
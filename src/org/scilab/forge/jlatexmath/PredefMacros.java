@@ -578,7 +578,7 @@ public class PredefMacros {
     }
 
     public static final Atom sideset_macro(final TeXParser tp, final String[] args) throws ParseException {
-        TeXFormula tf = TeXFormula.make();
+        TeXFormula tf = TeXFormula.make(tp);
         tf.add(new PhantomAtom(TeXFormula.make(tp, args[3]).root, false, true, true));
         tf.append(tp.getIsPartial(), args[1]);
         tf.add(new SpaceAtom(TeXConstants.UNIT_MU, -0.3f, 0f, 0f));
@@ -739,6 +739,7 @@ public class PredefMacros {
             array.add(tp.formula.root);
             array.addRow();
             TeXParser parser = new TeXParser(tp.getIsPartial(), tp.getStringFromCurrentPos(), array, false, tp.isIgnoreWhiteSpace());
+            parser.setMacroScope(tp.getMacroScope());
             parser.parse();
             array.checkDimensions();
             tp.finish();
@@ -769,6 +770,7 @@ public class PredefMacros {
     public static final Atom smallmatrixATATenv_macro(final TeXParser tp, final String[] args) throws ParseException {
         ArrayOfAtoms array = new ArrayOfAtoms();
         TeXParser parser = new TeXParser(tp.getIsPartial(), args[1], array, false);
+        parser.setMacroScope(tp.getMacroScope());
         parser.parse();
         array.checkDimensions();
         return new MatrixAtom(tp.getIsPartial(), array, MatrixAtom.SMALLMATRIX);
@@ -777,6 +779,7 @@ public class PredefMacros {
     public static final Atom matrixATATenv_macro(final TeXParser tp, final String[] args) throws ParseException {
         ArrayOfAtoms array = new ArrayOfAtoms();
         TeXParser parser = new TeXParser(tp.getIsPartial(), args[1], array, false);
+        parser.setMacroScope(tp.getMacroScope());
         parser.parse();
         array.checkDimensions();
         return new MatrixAtom(tp.getIsPartial(), array, MatrixAtom.MATRIX);
@@ -803,14 +806,16 @@ public class PredefMacros {
     public static final Atom arrayATATenv_macro(final TeXParser tp, final String[] args) throws ParseException {
         ArrayOfAtoms array = new ArrayOfAtoms();
         TeXParser parser = new TeXParser(tp.getIsPartial(), args[2], array, false);
+        parser.setMacroScope(tp.getMacroScope());
         parser.parse();
         array.checkDimensions();
-        return new MatrixAtom(tp.getIsPartial(), array, args[1], true);
+        return new MatrixAtom(tp.getIsPartial(), array, args[1], true, tp.getMacroScope());
     }
 
     public static final Atom alignATATenv_macro(final TeXParser tp, final String[] args) throws ParseException {
         ArrayOfAtoms array = new ArrayOfAtoms();
         TeXParser parser = new TeXParser(tp.getIsPartial(), args[1], array, false);
+        parser.setMacroScope(tp.getMacroScope());
         parser.parse();
         array.checkDimensions();
         return new MatrixAtom(tp.getIsPartial(), array, MatrixAtom.ALIGN);
@@ -819,6 +824,7 @@ public class PredefMacros {
     public static final Atom flalignATATenv_macro(final TeXParser tp, final String[] args) throws ParseException {
         ArrayOfAtoms array = new ArrayOfAtoms();
         TeXParser parser = new TeXParser(tp.getIsPartial(), args[1], array, false);
+        parser.setMacroScope(tp.getMacroScope());
         parser.parse();
         array.checkDimensions();
         return new MatrixAtom(tp.getIsPartial(), array, MatrixAtom.FLALIGN);
@@ -827,6 +833,7 @@ public class PredefMacros {
     public static final Atom alignatATATenv_macro(final TeXParser tp, final String[] args) throws ParseException {
         ArrayOfAtoms array = new ArrayOfAtoms();
         TeXParser parser = new TeXParser(tp.getIsPartial(), args[2], array, false);
+        parser.setMacroScope(tp.getMacroScope());
         parser.parse();
         array.checkDimensions();
         int n = Integer.parseInt(args[1]);
@@ -840,6 +847,7 @@ public class PredefMacros {
     public static final Atom alignedATATenv_macro(final TeXParser tp, final String[] args) throws ParseException {
         ArrayOfAtoms array = new ArrayOfAtoms();
         TeXParser parser = new TeXParser(tp.getIsPartial(), args[1], array, false);
+        parser.setMacroScope(tp.getMacroScope());
         parser.parse();
         array.checkDimensions();
         return new MatrixAtom(tp.getIsPartial(), array, MatrixAtom.ALIGNED);
@@ -848,6 +856,7 @@ public class PredefMacros {
     public static final Atom alignedatATATenv_macro(final TeXParser tp, final String[] args) throws ParseException {
         ArrayOfAtoms array = new ArrayOfAtoms();
         TeXParser parser = new TeXParser(tp.getIsPartial(), args[2], array, false);
+        parser.setMacroScope(tp.getMacroScope());
         parser.parse();
         array.checkDimensions();
         int n = Integer.parseInt(args[1]);
@@ -861,6 +870,7 @@ public class PredefMacros {
     public static final Atom multlineATATenv_macro(final TeXParser tp, final String[] args) throws ParseException {
         ArrayOfAtoms array = new ArrayOfAtoms();
         TeXParser parser = new TeXParser(tp.getIsPartial(), args[1], array, false);
+        parser.setMacroScope(tp.getMacroScope());
         parser.parse();
         array.checkDimensions();
         if (array.col > 1) {
@@ -876,6 +886,7 @@ public class PredefMacros {
     public static final Atom gatherATATenv_macro(final TeXParser tp, final String[] args) throws ParseException {
         ArrayOfAtoms array = new ArrayOfAtoms();
         TeXParser parser = new TeXParser(tp.getIsPartial(), args[1], array, false);
+        parser.setMacroScope(tp.getMacroScope());
         parser.parse();
         array.checkDimensions();
         if (array.col > 1) {
@@ -891,6 +902,7 @@ public class PredefMacros {
     public static final Atom gatheredATATenv_macro(final TeXParser tp, final String[] args) throws ParseException {
         ArrayOfAtoms array = new ArrayOfAtoms();
         TeXParser parser = new TeXParser(tp.getIsPartial(), args[1], array, false);
+        parser.setMacroScope(tp.getMacroScope());
         parser.parse();
         array.checkDimensions();
         if (array.col > 1) {
@@ -932,9 +944,9 @@ public class PredefMacros {
         }
 
         if (args[4] == null)
-            NewCommandMacro.addNewCommand(newcom.substring(1), args[2], nbArgs.intValue());
+            NewCommandMacro.addNewCommand(tp.getMacroScope(), newcom.substring(1), args[2], nbArgs.intValue());
         else
-            NewCommandMacro.addNewCommand(newcom.substring(1), args[2], nbArgs.intValue(), args[4]);
+            NewCommandMacro.addNewCommand(tp.getMacroScope(), newcom.substring(1), args[2], nbArgs.intValue(), args[4]);
 
         return null;
     }
@@ -954,7 +966,7 @@ public class PredefMacros {
         if (nbArgs == null)
             throw new ParseException("The optional argument should be an integer !");
 
-        NewCommandMacro.addReNewCommand(newcom.substring(1), args[2], nbArgs.intValue());
+        NewCommandMacro.addReNewCommand(tp.getMacroScope(), newcom.substring(1), args[2], nbArgs.intValue());
 
         return null;
     }
@@ -974,7 +986,7 @@ public class PredefMacros {
         if (opt == null)
             throw new ParseException("The optional argument should be an integer !");
 
-        NewEnvironmentMacro.addNewEnvironment(args[1], args[2], args[3], opt.intValue());
+        NewEnvironmentMacro.addNewEnvironment(tp.getMacroScope(), args[1], args[2], args[3], opt.intValue());
         return null;
     }
 
@@ -983,7 +995,7 @@ public class PredefMacros {
         if (opt == null)
             throw new ParseException("The optional argument should be an integer !");
 
-        NewEnvironmentMacro.addReNewEnvironment(args[1], args[2], args[3], opt.intValue());
+        NewEnvironmentMacro.addReNewEnvironment(tp.getMacroScope(), args[1], args[2], args[3], opt.intValue());
         return null;
     }
 
@@ -1293,13 +1305,13 @@ public class PredefMacros {
         } else
             throw new ParseException("The color model is incorrect !");
 
-        ColorAtom.Colors.put(args[1], color);
+        tp.getMacroScope().putColor(args[1], color);
         return null;
     }
 
     public static final Atom fgcolor_macro(final TeXParser tp, final String[] args) throws ParseException {
         try {
-            return new ColorAtom(TeXFormula.make(tp, args[2]).root, null, ColorAtom.getColor(args[1]));
+            return new ColorAtom(TeXFormula.make(tp, args[2]).root, null, ColorAtom.getColor(args[1], tp.getMacroScope()));
         } catch (NumberFormatException e) {
             throw new ParseException(e.toString());
         }
@@ -1307,23 +1319,23 @@ public class PredefMacros {
 
     public static final Atom bgcolor_macro(final TeXParser tp, final String[] args) throws ParseException {
         try {
-            return new ColorAtom(TeXFormula.make(tp, args[2]).root, ColorAtom.getColor(args[1]), null);
+            return new ColorAtom(TeXFormula.make(tp, args[2]).root, ColorAtom.getColor(args[1], tp.getMacroScope()), null);
         } catch (NumberFormatException e) {
             throw new ParseException(e.toString());
         }
     }
 
     public static final Atom textcolor_macro(final TeXParser tp, final String[] args) throws ParseException {
-        return new ColorAtom(TeXFormula.make(tp, args[2]).root, null, ColorAtom.getColor(args[1]));
+        return new ColorAtom(TeXFormula.make(tp, args[2]).root, null, ColorAtom.getColor(args[1], tp.getMacroScope()));
     }
 
     public static final Atom colorbox_macro(final TeXParser tp, final String[] args) throws ParseException {
-        Color c = ColorAtom.getColor(args[1]);
+        Color c = ColorAtom.getColor(args[1], tp.getMacroScope());
         return new FBoxAtom(TeXFormula.make(tp, args[2]).root, c, c);
     }
 
     public static final Atom fcolorbox_macro(final TeXParser tp, final String[] args) throws ParseException {
-        return new FBoxAtom(TeXFormula.make(tp, args[3]).root, ColorAtom.getColor(args[2]), ColorAtom.getColor(args[1]));
+        return new FBoxAtom(TeXFormula.make(tp, args[3]).root, ColorAtom.getColor(args[2], tp.getMacroScope()), ColorAtom.getColor(args[1], tp.getMacroScope()));
     }
 
     public static final Atom cong_macro(final TeXParser tp, final String[] args) throws ParseException {
@@ -79,10 +79,14 @@ public class PredefinedTeXFormulaParser {
                     String name = getAttrValueAndCheckIfNotNull("name", formula);
                     
                     // parse and build the formula and add it to the table
-                    if ("TeXFormula".equals(this.type))
-			predefinedTeXFormulas.put(name, (TeXFormula) TeXFormula.makeParser(name, formula, this.type).parse());
-		    else 
-			predefinedTeXFormulas.put(name, (MacroInfo) TeXFormula.makeParser(name, formula, this.type).parse());
+                    // (the tables are concurrent maps which don't accept null values)
+                    Object res = TeXFormula.makeParser(name, formula, this.type).parse();
+                    if (res != null) {
+                        if ("TeXFormula".equals(this.type))
+                            predefinedTeXFormulas.put(name, (TeXFormula) res);
+                        else
+                            predefinedTeXFormulas.put(name, (MacroInfo) res);
+                    }
                 }
             }
         }
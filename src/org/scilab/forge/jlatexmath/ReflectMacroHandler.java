@@ -0,0 +1,84 @@
+/* ReflectMacroHandler.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Handler used for the packages which don't implement MacroPackage: the method is
+ * resolved once and invoked through the Java reflection.
+ */
+final class ReflectMacroHandler implements MacroHandler {
+
+    /**
+     * The arguments given to Method.invoke, reused for each call on a thread. Method.invoke
+     * has copied them before the macro runs, so a macro can be invoked again from its method.
+     */
+    private static final ThreadLocal<Object[]> invokeArgs = new ThreadLocal<Object[]>() {
+	    protected Object[] initialValue() {
+		return new Object[2];
+	    }
+	};
+
+    private final Object pack;
+    private final Method macro;
+
+    ReflectMacroHandler(Object pack, Method macro) {
+        this.pack = pack;
+        this.macro = macro;
+        try {
+            // avoid the access check on each call
+            macro.setAccessible(true);
+        } catch (SecurityException e) { }
+    }
+
+    public Object handle(final TeXParser tp, final String[] args) throws ParseException {
+        final Object[] params = invokeArgs.get();
+        params[0] = tp;
+        params[1] = args;
+        try {
+            return macro.invoke(pack, params);
+        } catch (IllegalAccessException e) {
+            throw new ParseException("Problem with command " + args[0] + " at position " + tp.getLine() + ":" + tp.getCol() + "\n", e);
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Problem with command " + args[0] + " at position " + tp.getLine() + ":" + tp.getCol() + "\n", e);
+        } catch (InvocationTargetException e) {
+            Throwable th = e.getCause();
+            if (th instanceof LimitExceededException) {
+                throw (LimitExceededException) th;
+            }
+            throw new ParseException("Problem with command " + args[0] + " at position " + tp.getLine() + ":" + tp.getCol() + "\n" + th.getMessage());
+        } finally {
+            // don't keep the parser alive
+            params[0] = null;
+            params[1] = null;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/* RenderContext.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+/**
+ * The settings used to lay out and paint a formula: the number of pixels per point,
+ * the size factors of the text, script and scriptscript styles and the magnification.
+ * <p>
+ * A context is immutable, it is given to a {@link DefaultTeXFont} and is reachable from
+ * the {@link TeXEnvironment} with {@link TeXEnvironment#getRenderContext()}, so several
+ * threads can render formulas with different contexts at the same time.
+ * The default context is made from the global settings
+ * ({@link TeXFormula#setDPITarget(float)}, {@link DefaultTeXFont#setMathSizes(float, float, float, float)}
+ * and {@link DefaultTeXFont#setMagnification(float)}).
+ */
+public final class RenderContext {
+
+    private final float pixelsPerPoint;
+    private final float textFactor;
+    private final float scriptFactor;
+    private final float scriptScriptFactor;
+    private final float defaultSize;
+    private final float magFactor;
+
+    private RenderContext(float pixelsPerPoint, float textFactor, float scriptFactor, float scriptScriptFactor, float defaultSize, float magFactor) {
+        this.pixelsPerPoint = pixelsPerPoint;
+        this.textFactor = textFactor;
+        this.scriptFactor = scriptFactor;
+        this.scriptScriptFactor = scriptScriptFactor;
+        this.defaultSize = defaultSize;
+        this.magFactor = magFactor;
+    }
+
+    /**
+     * @return a context made from the current global settings
+     */
+    public static RenderContext getDefault() {
+        return new RenderContext(TeXFormula.PIXELS_PER_POINT, DefaultTeXFont.getSizeFactor(TeXConstants.STYLE_TEXT),
+                                 DefaultTeXFont.getSizeFactor(TeXConstants.STYLE_SCRIPT),
+                                 DefaultTeXFont.getSizeFactor(TeXConstants.STYLE_SCRIPT_SCRIPT),
+                                 TeXFormula.defaultSize, TeXFormula.magFactor);
+    }
+
+    /**
+     * @param dpi the DPI of the target
+     * @return a copy of this context for the given DPI
+     */
+    public RenderContext deriveDPITarget(float dpi) {
+        return new RenderContext(dpi / 72f, textFactor, scriptFactor, scriptScriptFactor, defaultSize, magFactor);
+    }
+
+    /**
+     * @param ds the size of the display style
+     * @param ts the size of the text style
+     * @param ss the size of the script style
+     * @param sss the size of the scriptscript style
+     * @return a copy of this context with the given math sizes
+     */
+    public RenderContext deriveMathSizes(float ds, float ts, float ss, float sss) {
+        return new RenderContext(pixelsPerPoint, Math.abs(ts / ds), Math.abs(ss / ds), Math.abs(sss / ds), Math.abs(ds), magFactor);
+    }
+
+    /**
+     * @param mag the magnification, 1000 is the identity
+     * @return a copy of this context with the given magnification
+     */
+    public RenderContext deriveMagnification(float mag) {
+        return new RenderContext(pixelsPerPoint, textFactor, scriptFactor, scriptScriptFactor, defaultSize, mag / 1000f);
+    }
+
+    public float getPixelsPerPoint() {
+        return pixelsPerPoint;
+    }
+
+    /**
+     * @param style a style like TeXConstants.STYLE_DISPLAY
+     * @return the factor to apply to the font size in this style
+     */
+    public float getSizeFactor(int style) {
+        if (style < TeXConstants.STYLE_TEXT)
+            return 1;
+        else if (style < TeXConstants.STYLE_SCRIPT)
+            return textFactor;
+        else if (style < TeXConstants.STYLE_SCRIPT_SCRIPT)
+            return scriptFactor;
+        else
+            return scriptScriptFactor;
+    }
+
+    /**
+     * @return the size of the display style set with the math sizes, or -1
+     */
+    public float getDefaultSize() {
+        return defaultSize;
+    }
+
+    /**
+     * @return the magnification factor, or 0 if there is no magnification
+     */
+    public float getMagFactor() {
+        return magFactor;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof RenderContext)) {
+            return false;
+        }
+        RenderContext c = (RenderContext) o;
+        return pixelsPerPoint == c.pixelsPerPoint && textFactor == c.textFactor && scriptFactor == c.scriptFactor
+            && scriptScriptFactor == c.scriptScriptFactor && defaultSize == c.defaultSize && magFactor == c.magFactor;
+    }
+
+    public int hashCode() {
+        int h = Float.floatToIntBits(pixelsPerPoint);
+        h = 31 * h + Float.floatToIntBits(textFactor);
+        h = 31 * h + Float.floatToIntBits(scriptFactor);
+        h = 31 * h + Float.floatToIntBits(scriptScriptFactor);
+        h = 31 * h + Float.floatToIntBits(defaultSize);
+        return 31 * h + Float.floatToIntBits(magFactor);
+    }
+}
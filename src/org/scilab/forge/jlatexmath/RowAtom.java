@@ -31,6 +31,8 @@
 
 package org.scilab.forge.jlatexmath;
 
+import com.dhsdevelopments.androidjlatexmath.swingcompat.Color;
+
 import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.ListIterator;
@@ -51,6 +53,13 @@ public class RowAtom extends Atom implements Row {
     // previous atom (for nested Row atoms)
     private Dummy previousAtom = null;
 
+    // when true, the last box is reused while the row and the environment don't change
+    boolean reuseBox = false;
+    private Box lastBox;
+    private BoxKey lastKey;
+    private int lastFontId;
+    private boolean lastColored;
+
     // set of atom types that make a previous bin atom change to ord
     private static BitSet binSet;
 
@@ -125,7 +134,46 @@ public class RowAtom extends Atom implements Row {
         }
     }
 
+    /**
+     * Forget the last box: must be called when the elements of a row reusing its box
+     * (or of one of its descendants) have been modified
+     */
+    void invalidateBox() {
+        lastBox = null;
+        lastKey = null;
+    }
+
     public Box createBox(TeXEnvironment env) {
+        if (!reuseBox) {
+            return createRowBox(env);
+        }
+
+        BoxKey key = new BoxKey(env, previousAtom);
+        if (lastBox != null && key.equals(lastKey)) {
+            // the same changes on the environment as createRowBox
+            env.reset();
+            env.setLastFontId(lastFontId);
+            if (lastColored) {
+                env.isColored = true;
+            }
+            previousAtom = null;
+            return lastBox;
+        }
+
+        boolean colored = env.isColored;
+        Box box = createRowBox(env);
+        // a box in a text with a width is modified when it is split
+        if (env.getTextwidth() == Float.POSITIVE_INFINITY) {
+            lastBox = box;
+            lastKey = key;
+            lastFontId = env.getLastFontId();
+            lastColored = !colored && env.isColored;
+        }
+
+        return box;
+    }
+
+    private Box createRowBox(TeXEnvironment env) {
         TeXFont tf = env.getTeXFont();
         HorizontalBox hBox = new HorizontalBox(env.getColor(), env.getBackground());
         int position = 0;
@@ -251,4 +299,65 @@ public class RowAtom extends Atom implements Row {
             return (elements.get(elements.size() - 1)).getRightType();
         }
     }
+
+    /**
+     * What a box of a row depends on: the environment, the font, the previous atom
+     * and the global tables
+     */
+    private static final class BoxKey {
+
+        private final int style;
+        private final float size;
+        private final float fontScale;
+        private final int fontFlags;
+        private final RenderContext context;
+        private final Color color;
+        private final Color background;
+        private final String textStyle;
+        private final boolean smallCap;
+        private final float scaleFactor;
+        private final float interline;
+        private final int fontId;
+        private final int previousType;
+        private final int version;
+
+        BoxKey(TeXEnvironment env, Dummy previous) {
+            TeXFont tf = env.getTeXFont();
+            style = env.getStyle();
+            size = tf.getSize();
+            fontScale = tf.getScaleFactor();
+            fontFlags = (tf.getBold() ? 1 : 0) | (tf.getRoman() ? 2 : 0) | (tf.getTt() ? 4 : 0) | (tf.getIt() ? 8 : 0) | (tf.getSs() ? 16 : 0);
+            context = tf.getRenderContext();
+            color = env.getColor();
+            background = env.getBackground();
+            textStyle = env.getTextStyle();
+            smallCap = env.getSmallCap();
+            scaleFactor = env.getScaleFactor();
+            interline = env.getInterline();
+            fontId = env.getLastFontId();
+            previousType = previous == null ? -1 : (previous.isKern() ? -2 : previous.getRightType());
+            version = MacroScope.getGlobalVersion();
+        }
+
+        private static boolean sameColor(Color c1, Color c2) {
+            return c1 == c2 || (c1 != null && c2 != null && c1.r == c2.r && c1.g == c2.g && c1.b == c2.b);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof BoxKey)) {
+                return false;
+            }
+            BoxKey k = (BoxKey) o;
+            return style == k.style && size == k.size && fontScale == k.fontScale && fontFlags == k.fontFlags
+                && (context == null ? k.context == null : context.equals(k.context))
+                && sameColor(color, k.color) && sameColor(background, k.background)
+                && (textStyle == null ? k.textStyle == null : textStyle.equals(k.textStyle))
+                && smallCap == k.smallCap && scaleFactor == k.scaleFactor && interline == k.interline
+                && fontId == k.fontId && previousType == k.previousType && version == k.version;
+        }
+
+        public int hashCode() {
+            return 31 * style + Float.floatToIntBits(size);
+        }
+    }
 }
@@ -86,13 +86,13 @@ public class SpaceAtom extends Atom {
 
         new UnitConversion() {//BP (or PostScript point)
             public float getPixelConversion(TeXEnvironment env) {
-                return TeXFormula.PIXELS_PER_POINT / env.getSize();
+                return env.getRenderContext().getPixelsPerPoint() / env.getSize();
             }
         },
 
         new UnitConversion() {//PICA
             public float getPixelConversion(TeXEnvironment env) {
-                return (12 * TeXFormula.PIXELS_PER_POINT) / env.getSize();
+                return (12 * env.getRenderContext().getPixelsPerPoint()) / env.getSize();
             }
         },
 
@@ -105,43 +105,43 @@ public class SpaceAtom extends Atom {
 
         new UnitConversion() {//CM
             public float getPixelConversion(TeXEnvironment env) {
-                return (28.346456693f * TeXFormula.PIXELS_PER_POINT) / env.getSize();
+                return (28.346456693f * env.getRenderContext().getPixelsPerPoint()) / env.getSize();
             }
         },
 
         new UnitConversion() {//MM
             public float getPixelConversion(TeXEnvironment env) {
-                return (2.8346456693f * TeXFormula.PIXELS_PER_POINT) / env.getSize();
+                return (2.8346456693f * env.getRenderContext().getPixelsPerPoint()) / env.getSize();
             }
         },
 
         new UnitConversion() {//IN
             public float getPixelConversion(TeXEnvironment env) {
-                return (72 * TeXFormula.PIXELS_PER_POINT) / env.getSize();
+                return (72 * env.getRenderContext().getPixelsPerPoint()) / env.getSize();
             }
         },
 
         new UnitConversion() {//SP
             public float getPixelConversion(TeXEnvironment env) {
-                return (65536 * TeXFormula.PIXELS_PER_POINT) / env.getSize();
+                return (65536 * env.getRenderContext().getPixelsPerPoint()) / env.getSize();
             }
         },
 
         new UnitConversion() {//PT (or Standard Anglo-American point)
             public float getPixelConversion(TeXEnvironment env) {
-                return (.9962640099f * TeXFormula.PIXELS_PER_POINT) / env.getSize();
+                return (.9962640099f * env.getRenderContext().getPixelsPerPoint()) / env.getSize();
             }
         },
 
         new UnitConversion() {//DD
             public float getPixelConversion(TeXEnvironment env) {
-                return (1.0660349422f * TeXFormula.PIXELS_PER_POINT) / env.getSize();
+                return (1.0660349422f * env.getRenderContext().getPixelsPerPoint()) / env.getSize();
             }
         },
 
         new UnitConversion() {//CC
             public float getPixelConversion(TeXEnvironment env) {
-                return (12.7924193070f * TeXFormula.PIXELS_PER_POINT) / env.getSize();
+                return (12.7924193070f * env.getRenderContext().getPixelsPerPoint()) / env.getSize();
             }
         }
     };
@@ -33,6 +33,7 @@ package org.scilab.forge.jlatexmath;
 
 import java.util.BitSet;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
@@ -57,7 +58,12 @@ public class SymbolAtom extends CharSymbol {
     private char unicode;
     
     static {
-        symbols = new TeXSymbolParser().readSymbols();
+        CompiledResources res = CompiledResources.get();
+        if (res != null) {
+            symbols = new ConcurrentHashMap<String, SymbolAtom>(res.readSymbols());
+        } else {
+            symbols = new ConcurrentHashMap<String, SymbolAtom>(new TeXSymbolParser().readSymbols());
+        }
         
         // set valid symbol types
         validSymbolTypes =  new BitSet(16);
@@ -123,10 +129,12 @@ public class SymbolAtom extends CharSymbol {
     public static void addSymbolAtom(InputStream in, String name) {
 	TeXSymbolParser tsp = new TeXSymbolParser(in, name);
 	symbols.putAll(tsp.readSymbols());
+	MacroScope.globalChanged();
     }
 
     public static void addSymbolAtom(SymbolAtom sym) {
 	symbols.put(sym.name, sym);
+	MacroScope.globalChanged();
     }
     
     /**
@@ -138,7 +146,7 @@ public class SymbolAtom extends CharSymbol {
      * @throws SymbolNotFoundException if no symbol with the given name was found
      */
     public static SymbolAtom get(String name) throws SymbolNotFoundException {
-        Object obj = symbols.get(name);
+        Object obj = name == null ? null : symbols.get(name);
         if (obj == null) // not found
             throw new SymbolNotFoundException(name);
         else
@@ -164,7 +172,7 @@ public class SymbolAtom extends CharSymbol {
 	Box cb = new CharBox(c);
 	if (env.getSmallCap() && unicode != 0 && Character.isLowerCase(unicode)) {
 	    try {
-		cb = new ScaleBox(new CharBox(tf.getChar( TeXFormula.symbolTextMappings[Character.toUpperCase(unicode)], style)), 0.8, 0.8);
+		cb = new ScaleBox(new CharBox(tf.getChar( TeXFormula.symbolTextMappings.get(Character.toUpperCase(unicode)), style)), 0.8, 0.8);
 	    } catch (SymbolMappingNotFoundException e) { }
 	}
 
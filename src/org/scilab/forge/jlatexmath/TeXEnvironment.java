@@ -211,6 +211,13 @@ public class TeXEnvironment {
     public TeXFont getTeXFont() {
         return tf;
     }
+
+    /**
+     * @return the context of the current rendering, given by the TeXFont
+     */
+    public RenderContext getRenderContext() {
+        return tf.getRenderContext();
+    }
     
     /**
      *
@@ -51,6 +51,11 @@ public interface TeXFont {
 
     public float getScaleFactor();
 
+    /**
+     * @return the context used to convert the font metrics in pixels
+     */
+    public RenderContext getRenderContext();
+
     public float getAxisHeight(int style);
     
     public float getBigOpSpacing1(int style);
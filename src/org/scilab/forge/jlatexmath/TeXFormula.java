@@ -31,10 +31,10 @@
 
 package org.scilab.forge.jlatexmath;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.InputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -115,37 +115,51 @@ public abstract class TeXFormula
     protected static final float PREC = 0.0000001f;
 
     // predefined TeXFormula's
-    public static Map<String, TeXFormula> predefinedTeXFormulas = new HashMap<String, TeXFormula>(150);
-    public static Map<String, String> predefinedTeXFormulasAsString = new HashMap<String, String>(150);
+    public static Map<String, TeXFormula> predefinedTeXFormulas = new ConcurrentHashMap<String, TeXFormula>(150);
+    public static Map<String, String> predefinedTeXFormulasAsString = new ConcurrentHashMap<String, String>(150);
 
     // character-to-symbol and character-to-delimiter mappings
-    public static String[] symbolMappings = new String[65536];
-    public static String[] symbolTextMappings = new String[65536];
-    public static String[] symbolFormulaMappings = new String[65536];
-    public static Map<Character.UnicodeBlock, FontInfos> externalFontMap = new HashMap<Character.UnicodeBlock, FontInfos>();
+    public static final CharMap symbolMappings = new CharMap();
+    public static final CharMap symbolTextMappings = new CharMap();
+    public static final CharMap symbolFormulaMappings = new CharMap();
+    public static Map<Character.UnicodeBlock, FontInfos> externalFontMap = new ConcurrentHashMap<Character.UnicodeBlock, FontInfos>();
     public static float defaultSize = -1;
     public static float magFactor = 0;
 
     public List<MiddleAtom> middle = new LinkedList<MiddleAtom>();
 
     protected Map<String, String> jlmXMLMap;
-    private TeXParser parser;
+    protected MacroScope macroScope;
+    TeXParser parser;
 
     static {
         // character-to-symbol and character-to-delimiter mappings
-        TeXFormulaSettingsParser parser = new TeXFormulaSettingsParser();
-        parser.parseSymbolMappings(symbolMappings, symbolTextMappings);
+        CompiledResources res = CompiledResources.get();
+        TeXFormulaSettingsParser parser = null;
+        if (res != null) {
+            res.readCharToSymbolMappings(symbolMappings, symbolTextMappings);
+        } else {
+            parser = new TeXFormulaSettingsParser();
+            parser.parseSymbolMappings(symbolMappings, symbolTextMappings);
+        }
 
         new PredefinedCommands();
         new PredefinedTeXFormulas();
         new PredefMacros();
 
-        parser.parseSymbolToFormulaMappings(symbolFormulaMappings, symbolTextMappings);
+        if (res != null) {
+            res.readCharToFormulaMappings(symbolFormulaMappings, symbolTextMappings);
+            // the macros and the formulas registered by the application when the
+            // resources are a snapshot
+            res.readMacros();
+            res.readFormulas(predefinedTeXFormulasAsString);
+        } else {
+            parser.parseSymbolToFormulaMappings(symbolFormulaMappings, symbolTextMappings);
+        }
 
-        try {
-            DefaultTeXFont.registerAlphabet((AlphabetRegistration) Class.forName("org.scilab.forge.jlatexmath.cyrillic.CyrillicRegistration").newInstance());
-            DefaultTeXFont.registerAlphabet((AlphabetRegistration) Class.forName("org.scilab.forge.jlatexmath.greek.GreekRegistration").newInstance());
-        } catch (Exception e) { }
+        // the alphabets are loaded when one of their characters is met
+        ClassAlphabetRegistration.register("org.scilab.forge.jlatexmath.cyrillic.CyrillicRegistration", AlphabetRegistration.JLM_CYRILLIC);
+        ClassAlphabetRegistration.register("org.scilab.forge.jlatexmath.greek.GreekRegistration", AlphabetRegistration.JLM_GREEK);
 
         //setDefaultDPI();
     }
@@ -170,13 +184,19 @@ public abstract class TeXFormula
         TeXFormulaSettingsParser tfsp = new TeXFormulaSettingsParser(in, name);
         tfsp.parseSymbolMappings(symbolMappings, symbolTextMappings);
         tfsp.parseSymbolToFormulaMappings(symbolFormulaMappings, symbolTextMappings);
+        MacroScope.globalChanged();
     }
 
     public static boolean isRegisteredBlock(Character.UnicodeBlock block) {
-	return externalFontMap.get(block) != null;
+	return block != null && externalFontMap.get(block) != null;
     }
 
     public static FontInfos getExternalFont(Character.UnicodeBlock block) {
+        if (block == null) {
+            // unassigned code point: the map doesn't accept null keys
+            return new FontInfos("SansSerif", "Serif");
+        }
+
         FontInfos infos = externalFontMap.get(block);
         if (infos == null) {
             infos = new FontInfos("SansSerif", "Serif");
@@ -189,12 +209,14 @@ public abstract class TeXFormula
     public static void registerExternalFont(Character.UnicodeBlock block, String sansserif, String serif) {
         if (sansserif == null && serif == null) {
             externalFontMap.remove(block);
+            MacroScope.globalChanged();
             return;
         }
         externalFontMap.put(block, new FontInfos(sansserif, serif));
         if (block.equals(Character.UnicodeBlock.BASIC_LATIN)) {
             predefinedTeXFormulas.clear();
         }
+        MacroScope.globalChanged();
     }
 
     public static void registerExternalFont(Character.UnicodeBlock block, String fontName) {
@@ -207,6 +229,7 @@ public abstract class TeXFormula
      */
     public static void setDPITarget(float dpi) {
         PIXELS_PER_POINT = dpi / 72f;
+        MacroScope.globalChanged();
     }
 
     /**
@@ -226,6 +249,19 @@ public abstract class TeXFormula
 
     public boolean isColored = false;
 
+    // number of the atoms added to the root, used to know if a cached layout is still valid
+    int modCount = 0;
+
+    // the source and the version of the global tables of a formula copied from the
+    // ParsedFormulaCache, they identify its cached layouts as long as it is not modified
+    String source;
+    int sourceVersion;
+    private Atom sourceRoot;
+    private int sourceModCount;
+
+    // the limits of the parse and of the layout, null for the default ones
+    ParseLimits limits;
+
     public static TeXFormula getAsText(String text, int alignment) throws ParseException {
         TeXFormula formula = TeXFormula.make();
         if (text == null || "".equals(text)) {
@@ -259,6 +295,8 @@ public abstract class TeXFormula
         TeXParser parser = new TeXParser(true, formula, f);
         try {
             parser.parse();
+        } catch (LimitExceededException e) {
+            throw e;
         } catch (Exception e) {
             if (f.root == null) {
                 f.root = new EmptyAtom();
@@ -282,16 +320,38 @@ public abstract class TeXFormula
      * @param ltx the latex formula
      */
     public void setLaTeX(String ltx) throws ParseException {
+        source = null;
+        if (parser.reparse( ltx )) {
+            modCount++;
+            return;
+        }
         parser.reset( ltx );
         if (ltx != null && ltx.length() != 0)
             parser.parse();
     }
 
+    /**
+     * In incremental mode, when the text given to {@link #setLaTeX(String)} differs from
+     * the previous one only inside a group {...}, only this group is parsed again and only
+     * the rows containing it are laid out again, the boxes of the other groups are reused.
+     * It is useful for an editor which sets the text after each keystroke.
+     * A formula made by {@link #make(String)} is a copy of the cached one, so the incremental
+     * mode never modifies the atoms of a cached formula.
+     *
+     * @param b true to set the incremental mode
+     */
+    public void setIncremental(boolean b) {
+        // the layouts of an incremental formula are never shared with the cached copies
+        source = null;
+        parser.setIncremental(b);
+    }
+
     /**
      * Inserts an atom at the end of the current formula
      */
     public TeXFormula add(Atom el) {
         if (el != null) {
+            modCount++;
             if (el instanceof MiddleAtom)
                 middle.add((MiddleAtom) el);
             if (root == null) {
@@ -388,10 +448,12 @@ public abstract class TeXFormula
 
     public static void addPredefinedTeXFormula(InputStream xmlFile) throws ResourceParseException {
         new PredefinedTeXFormulaParser(xmlFile, "TeXFormula").parse(predefinedTeXFormulas);
+        MacroScope.globalChanged();
     }
 
     public static void addPredefinedCommands(InputStream xmlFile) throws ResourceParseException {
         new PredefinedTeXFormulaParser(xmlFile, "Command").parse(MacroInfo.Commands);
+        MacroScope.globalChanged();
     }
 
     /**
@@ -451,12 +513,29 @@ public abstract class TeXFormula
     protected Box createBox( TeXEnvironment style ) {
         if (root == null)
             return new StrutBox(0, 0, 0, 0);
-        else
+
+        ParseLimits.Budget outer = ParseLimits.current();
+        ParseLimits l = getParseLimits();
+        if (outer != null || !l.needsCounting()) {
+            return root.createBox(style);
+        }
+
+        // the layout has its own budget of boxes and time
+        ParseLimits.Budget budget = new ParseLimits.Budget(l);
+        ParseLimits.enter(budget);
+        try {
             return root.createBox(style);
+        } finally {
+            ParseLimits.exit(budget, outer);
+        }
     }
 
     protected DefaultTeXFont createFont( float size, int type ) {
-        DefaultTeXFont dtf = new DefaultTeXFont(size);
+        return createFont(size, type, RenderContext.getDefault());
+    }
+
+    protected DefaultTeXFont createFont( float size, int type, RenderContext context ) {
+        DefaultTeXFont dtf = new DefaultTeXFont(size, context);
         if (type == 0) {
             dtf.setSs(false);
         }
@@ -600,12 +679,109 @@ public abstract class TeXFormula
     }
 
     public static TeXFormula make( String s ) {
-        return factory.make( s, null );
+        if (s == null || !ParsedFormulaCache.isEnabled()) {
+            return factory.make( s, null );
+        }
+
+        int version = MacroScope.getGlobalVersion();
+        TeXFormula f = ParsedFormulaCache.get(s, version);
+        if (f == null) {
+            f = factory.make( s, null );
+            if (version != MacroScope.getGlobalVersion()) {
+                // the formula has defined something: it must be parsed again each time
+                return f;
+            }
+            ParsedFormulaCache.put(s, version, f);
+        }
+
+        // the layout writes in the atoms: the cached tree is never given
+        Atom root = AtomCopier.copy(f.root);
+        if (root == null) {
+            return factory.make( s, null );
+        }
+        TeXFormula copy = factory.make();
+        copy.root = root;
+        copy.textStyle = f.textStyle;
+        copy.isColored = f.isColored;
+        copy.parser = new TeXParser("", copy, false);
+        copy.source = s;
+        copy.sourceVersion = version;
+        copy.sourceRoot = root;
+        copy.sourceModCount = copy.modCount;
+        return copy;
+    }
+
+    /**
+     * @return the source of this formula if it has been copied from the ParsedFormulaCache
+     * and not modified since, null otherwise
+     */
+    String getCachedSource() {
+        return source != null && root == sourceRoot && modCount == sourceModCount ? source : null;
+    }
+
+    /**
+     * Creates a TeXFormula by parsing the given string in the given scope: the
+     * commands defined in the string are only visible in this scope.
+     *
+     * @param s the string to be parsed
+     * @param scope the scope where the commands are looked up and defined
+     * @throws ParseException if the string could not be parsed correctly
+     */
+    public static TeXFormula make( String s, MacroScope scope ) throws ParseException {
+        return make( s, scope, null );
+    }
+
+    /**
+     * Creates a TeXFormula by parsing the given string in the given scope and with the
+     * given limits.
+     *
+     * @param s the string to be parsed
+     * @param scope the scope where the commands are looked up and defined, null for the global one
+     * @param limits the limits of the parse and of the layout, null for the default ones
+     * @throws ParseException if the string could not be parsed correctly
+     * @throws LimitExceededException if a limit is exceeded
+     */
+    public static TeXFormula make( String s, MacroScope scope, ParseLimits limits ) throws ParseException {
+        TeXFormula f = factory.make();
+        f.macroScope = scope;
+        f.limits = limits;
+        f.parser = new TeXParser(s, f);
+        f.parser.parse();
+        return f;
+    }
+
+    /**
+     * Creates a TeXFormula by parsing the given string with the given limits: a
+     * {@link LimitExceededException} is thrown if the parse or the layout of the
+     * formula uses more resources than allowed. The parsed formulas are not cached.
+     *
+     * @param s the string to be parsed
+     * @param limits the limits of the parse and of the layout
+     * @throws ParseException if the string could not be parsed correctly
+     * @throws LimitExceededException if a limit is exceeded
+     */
+    public static TeXFormula make( String s, ParseLimits limits ) throws ParseException {
+        return make( s, null, limits );
+    }
+
+    /**
+     * @return the limits of the parse and of the layout of this formula
+     */
+    public ParseLimits getParseLimits() {
+        return limits == null ? ParseLimits.getDefault() : limits;
+    }
+
+    /**
+     * @return the scope where the commands of this formula are looked up and defined
+     */
+    public MacroScope getMacroScope() {
+        return macroScope == null ? MacroScope.GLOBAL : macroScope;
     }
 
     public static TeXFormula make( TeXParser tp ) {
         TeXFormula f = factory.make();
         f.jlmXMLMap = tp.formula.jlmXMLMap;
+        f.macroScope = tp.getMacroScope();
         f.parser = new TeXParser(tp.getIsPartial(), "", f, false);
         return f;
     }
@@ -667,11 +843,14 @@ public abstract class TeXFormula
         TeXFormula f = factory.make();
         f.textStyle = null;
         f.jlmXMLMap = tp.formula.jlmXMLMap;
+        f.macroScope = tp.getMacroScope();
         boolean isPartial = tp.getIsPartial();
         f.parser = new TeXParser(isPartial, s, f, firstpass);
         if (isPartial) {
             try {
                 f.parser.parse();
+            } catch (LimitExceededException e) {
+                throw e;
             } catch (Exception e) { }
         } else {
             f.parser.parse();
@@ -687,11 +866,14 @@ public abstract class TeXFormula
         TeXFormula f = factory.make();
         f.textStyle = textStyle;
         f.jlmXMLMap = tp.formula.jlmXMLMap;
+        f.macroScope = tp.getMacroScope();
         boolean isPartial = tp.getIsPartial();
         f.parser = new TeXParser(isPartial, s, f);
         if (isPartial) {
             try {
                 f.parser.parse();
+            } catch (LimitExceededException e) {
+                throw e;
             } catch (Exception e) {
                 if (f.root == null) {
                     f.root = new EmptyAtom();
@@ -707,11 +889,14 @@ public abstract class TeXFormula
         TeXFormula f = factory.make();
         f.textStyle = textStyle;
         f.jlmXMLMap = tp.formula.jlmXMLMap;
+        f.macroScope = tp.getMacroScope();
         boolean isPartial = tp.getIsPartial();
         f.parser = new TeXParser(isPartial, s, f, firstpass, space);
         if (isPartial) {
             try {
                 f.parser.parse();
+            } catch (LimitExceededException e) {
+                throw e;
             } catch (Exception e) {
                 if (f.root == null) {
                     f.root = new EmptyAtom();
@@ -63,19 +63,19 @@ public class TeXFormulaSettingsParser {
         }
     }
 
-    public void parseSymbolToFormulaMappings(String[] mappings, String[] textMappings) throws ResourceParseException {
+    public void parseSymbolToFormulaMappings(CharMap mappings, CharMap textMappings) throws ResourceParseException {
         Element charToSymbol = (Element)root.getElementsByTagName("CharacterToFormulaMappings").item(0);
         if (charToSymbol != null) // element present
             addFormulaToMap(charToSymbol.getElementsByTagName("Map"), mappings, textMappings);
     }
 
-    public void parseSymbolMappings(String[] mappings, String[] textMappings) throws ResourceParseException {
+    public void parseSymbolMappings(CharMap mappings, CharMap textMappings) throws ResourceParseException {
         Element charToSymbol = (Element)root.getElementsByTagName("CharacterToSymbolMappings").item(0);
         if (charToSymbol != null) // element present
             addToMap(charToSymbol.getElementsByTagName("Map"), mappings, textMappings);
     }
 
-    private static void addToMap(NodeList mapList, String[] tableMath, String[] tableText) throws ResourceParseException {
+    private static void addToMap(NodeList mapList, CharMap tableMath, CharMap tableText) throws ResourceParseException {
         for (int i = 0; i < mapList.getLength(); i++) {
             Element map = (Element) mapList.item(i);
             String ch = map.getAttribute("char");
@@ -89,19 +89,19 @@ public class TeXFormulaSettingsParser {
             }
 
 	    if (ch.length() == 1) {// valid element found
-                tableMath[ch.charAt(0)] =  symbol;
+                tableMath.put(ch.charAt(0), symbol);
             } else {
                 // only single-character mappings allowed, ignore others
                 throw new XMLResourceParseException(RESOURCE_NAME, map.getTagName(), "char", "must have a value that contains exactly 1 character!");
 	    }
 
 	    if (tableText != null && !text.equals("")) {
-		tableText[ch.charAt(0)] = text;
+		tableText.put(ch.charAt(0), text);
 	    }
 	}
     }
 
-    private static void addFormulaToMap(NodeList mapList, String[] tableMath, String[] tableText) throws ResourceParseException {
+    private static void addFormulaToMap(NodeList mapList, CharMap tableMath, CharMap tableText) throws ResourceParseException {
         for (int i = 0; i < mapList.getLength(); i++) {
             Element map = (Element)mapList.item(i);
             String ch = map.getAttribute("char");
@@ -115,7 +115,7 @@ public class TeXFormulaSettingsParser {
                 throw new XMLResourceParseException(RESOURCE_NAME, map.getTagName(),
                         "formula", null);
             if (ch.length() == 1) {// valid element found
-		tableMath[ch.charAt(0)] = formula;
+		tableMath.put(ch.charAt(0), formula);
 	    }
             else
                 // only single-character mappings allowed, ignore others
@@ -124,7 +124,7 @@ public class TeXFormulaSettingsParser {
                         "must have a value that contains exactly 1 character!");
 
 	    if (tableText != null && !text.equals("")) {
-		tableText[ch.charAt(0)] = text;
+		tableText.put(ch.charAt(0), text);
 	    }
         }
     }
@@ -30,7 +30,12 @@ package org.scilab.forge.jlatexmath;
 
 import com.dhsdevelopments.androidjlatexmath.swingcompat.Color;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
 import java.util.Set;
 
 /**
@@ -40,7 +45,8 @@ public class TeXParser {
 
     TeXFormula formula;
 
-    private StringBuffer parseString;
+    private MacroScope macroScope;
+    private ParseBuffer parseString;
     private int pos;
     private int spos;
     private int line;
@@ -53,6 +59,23 @@ public class TeXParser {
     private boolean ignoreWhiteSpace = true;
     private boolean isPartial;
     private boolean autoNumberBreaking;
+    private ParseLimits.Budget budget;
+
+    // the scanner and the arguments of the commands being read, one per nested command
+    private final TeXTokenizer tokens = new TeXTokenizer();
+    private Arguments[] arguments = new Arguments[4];
+    private int argDepth;
+
+    // the groups of the last parse, to parse again only the group where an edit
+    // has been made (see setIncremental), null when the parser is not incremental
+    private List<Group> groups;
+    private Group currentGroup;
+    // the string of the last parse, null if its groups can't be parsed alone
+    private String source;
+    private String pending;
+    private boolean expanded;
+    private int version;
+    private int nesting;
 
     // the escape character
     private static final char ESCAPE = '\\';
@@ -158,10 +181,12 @@ public class TeXParser {
     public TeXParser(boolean isPartial, String parseString, TeXFormula formula, boolean firstpass) {
         this.formula = formula;
         this.isPartial = isPartial;
+        this.macroScope = formula != null && formula.macroScope != null ? formula.macroScope : MacroScope.GLOBAL;
         if (parseString != null) {
-            this.parseString = new StringBuffer(parseString);
+            this.parseString = new ParseBuffer(parseString);
             this.len = parseString.length();
             this.pos = 0;
+            this.budget = ParseLimits.getBudget(formula, len);
             if (firstpass) {
                 firstpass();
             }
@@ -169,6 +194,7 @@ public class TeXParser {
             this.parseString = null;
             this.pos = 0;
             this.len = 0;
+            this.budget = ParseLimits.getBudget(formula, 0);
         }
     }
 
@@ -254,7 +280,7 @@ public class TeXParser {
      * Reset the parser with a new latex expression
      */
     public void reset(String latex) {
-        parseString = new StringBuffer(latex);
+        parseString = new ParseBuffer(latex);
         len = parseString.length();
         formula.root = null;
         pos = 0;
@@ -266,7 +292,19 @@ public class TeXParser {
         atIsLetter = 0;
         arrayMode = false;
         ignoreWhiteSpace = true;
+        budget = ParseLimits.getBudget(formula, len);
+        if (groups != null) {
+            groups.clear();
+            currentGroup = null;
+            source = null;
+            expanded = false;
+            version = macroScope.getVersion();
+        }
         firstpass();
+        if (groups != null) {
+            // the positions of the groups are the ones in latex if the first pass changed nothing
+            pending = latex != null && latex.contentEquals(parseString) && latex.indexOf("jlmDynamic") == -1 ? latex : null;
+        }
     }
 
     /** Return true if we get a partial formula
@@ -275,6 +313,33 @@ public class TeXParser {
         return isPartial;
     }
 
+    /** Record or not the groups of the parsed string, so that a string differing from
+     * the previous one only inside a group can be parsed with {@link #reparse(String)}
+     */
+    public void setIncremental(boolean incremental) {
+        groups = incremental ? new ArrayList<Group>() : null;
+        currentGroup = null;
+        source = null;
+    }
+
+    /** Return true if the groups of the parsed string are recorded
+     */
+    public boolean isIncremental() {
+        return groups != null;
+    }
+
+    /** Get the scope where the commands are looked up and defined
+     */
+    public MacroScope getMacroScope() {
+        return macroScope;
+    }
+
+    /** Set the scope where the commands are looked up and defined
+     */
+    public void setMacroScope(MacroScope macroScope) {
+        this.macroScope = macroScope == null ? MacroScope.GLOBAL : macroScope;
+    }
+
     /** Get the number of the current line
      */
     public int getLine() {
@@ -398,7 +463,7 @@ public class TeXParser {
                     com = getCommand();
                     if ("newcommand".equals(com) || "renewcommand".equals(com)) {
                         args = getOptsArgs(2, 2);
-                        mac = MacroInfo.Commands.get(com);
+                        mac = macroScope.get(com);
                         try {
                             mac.invoke(this, args);
                         } catch (ParseException e) {
@@ -409,24 +474,26 @@ public class TeXParser {
                         parseString.delete(spos, pos);
                         len = parseString.length();
                         pos = spos;
-                    } else if (NewCommandMacro.isMacro(com)) {
-                        mac = MacroInfo.Commands.get(com);
-                        args = getOptsArgs(mac.nbArgs, mac.hasOptions ? 1 : 0);
-                        args[0] = com;
+                    } else if (macroScope.isMacro(com)) {
+                        mac = macroScope.get(com);
+                        Arguments margs = scanOptsArgs(mac.nbArgs, mac.hasOptions ? 1 : 0);
                         try {
-                            parseString.replace(spos, pos, (String) mac.invoke(this, args));
+                            parseString.replace(spos, pos, ((NewCommandMacro.Handler) mac.handler).expand(margs, mac.nbArgs));
                         } catch (ParseException e) {
                             if (!isPartial) {
                                 throw e;
                             } else {
                                 spos += com.length() + 1;
                             }
+                        } finally {
+                            releaseArguments();
                         }
                         len = parseString.length();
                         pos = spos;
+                        checkExpansion();
                     } else if ("begin".equals(com)) {
                         args = getOptsArgs(1, 0);
-                        mac = MacroInfo.Commands.get(args[1] + "@env");
+                        mac = macroScope.get(args[1] + "@env");
                         if (mac == null) {
                             if (!isPartial) {
                                 throw new ParseException("Unknown environment: " + args[1] + " at position " + getLine() + ":" + getCol());
@@ -435,13 +502,14 @@ public class TeXParser {
                             try {
                                 String[] optarg = getOptsArgs(mac.nbArgs - 1, 0);
                                 String grp = getGroup("\\begin{" + args[1] + "}", "\\end{" + args[1] + "}");
-                                String expr = "{\\makeatletter \\" + args[1] + "@env";
+                                StringBuilder expr = new StringBuilder("{\\makeatletter \\").append(args[1]).append("@env");
                                 for (int i = 1; i <= mac.nbArgs - 1; i++)
-                                    expr += "{" + optarg[i] + "}";
-                                expr += "{" + grp  + "}\\makeatother}";
-                                parseString.replace(spos, pos, expr);
+                                    expr.append('{').append(optarg[i]).append('}');
+                                expr.append('{').append(grp).append("}\\makeatother}");
+                                parseString.replace(spos, pos, expr.toString());
                                 len = parseString.length();
                                 pos = spos;
+                                checkExpansion();
                             } catch (ParseException e) {
                                 if (!isPartial) {
                                     throw e;
@@ -453,7 +521,8 @@ public class TeXParser {
                     else if ("makeatother".equals(com))
                         atIsLetter--;
                     else if (unparsedContents.contains(com)) {
-                        getOptsArgs(1, 0);
+                        scanOptsArgs(1, 0);
+                        releaseArguments();
                     }
                     break;
                 case PERCENT :
@@ -643,8 +712,27 @@ public class TeXParser {
 
     /** Parse the input string
      * @throws ParseException if an error is encountered during parsing
+     * @throws LimitExceededException if the formula uses more resources than allowed
      */
     public void parse() throws ParseException {
+        // the formulas made while parsing share the budget of this parser
+        ParseLimits.Budget outer = ParseLimits.enter(budget);
+        budget.enterGroup();
+        nesting++;
+        try {
+            parseContents();
+        } finally {
+            nesting--;
+            budget.exitGroup();
+            ParseLimits.exit(budget, outer);
+        }
+        if (nesting == 0 && groups != null) {
+            // the groups can be parsed alone if nothing has been expanded or defined
+            source = !expanded && macroScope.getVersion() == version ? pending : null;
+        }
+    }
+
+    private void parseContents() throws ParseException {
         if (len != 0) {
             char ch;
             while (pos < len) {
@@ -701,11 +789,7 @@ public class TeXParser {
                     }
                     break;
                 case L_GROUP :
-                    Atom atom = getArgument();
-                    if (atom != null) {
-                        atom.type = TeXConstants.TYPE_ORDINARY;
-                    }
-                    formula.add(atom);
+                    formula.add(parseGroup());
                     break;
                 case R_GROUP :
                     group--;
@@ -768,6 +852,208 @@ public class TeXParser {
         }
     }
 
+    /** Parse a group {...} added as is to the current formula, and record it
+     * when the parser is incremental
+     */
+    private Atom parseGroup() throws ParseException {
+        Group g = null;
+        if (groups != null) {
+            g = new Group(pos, currentGroup, formula, atIsLetter, ignoreWhiteSpace);
+            currentGroup = g;
+        }
+
+        Atom atom;
+        try {
+            atom = getArgument();
+        } finally {
+            if (g != null) {
+                currentGroup = g.parent;
+            }
+        }
+
+        if (atom != null) {
+            atom.type = TeXConstants.TYPE_ORDINARY;
+            if (g != null && pos >= g.start + 2 && parseString.charAt(pos - 1) == R_GROUP) {
+                g.end = pos;
+                g.atom = atom;
+                if (atom instanceof RowAtom) {
+                    ((RowAtom) atom).reuseBox = true;
+                }
+                groups.add(g);
+            }
+        }
+
+        return atom;
+    }
+
+    /** Parse a new string differing from the previous one only inside a group: the
+     * innermost group containing the edit is parsed again and its atom is replaced
+     * in its row. Nothing is done if it isn't possible (the groups haven't been
+     * recorded, a macro has been expanded, the atom of the group is no longer in a row, ...),
+     * then the string must be parsed with reset and parse.
+     * @param latex the new string
+     * @return true if the formula has been updated
+     */
+    public boolean reparse(String latex) {
+        if (groups == null || source == null || latex == null || nesting != 0 || macroScope.getVersion() != version) {
+            return false;
+        }
+
+        final int olen = source.length();
+        final int nlen = latex.length();
+        final int max = Math.min(olen, nlen);
+        int prefix = 0;
+        while (prefix < max && source.charAt(prefix) == latex.charAt(prefix)) {
+            prefix++;
+        }
+        if (prefix == olen && olen == nlen) {
+            return true;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix && source.charAt(olen - 1 - suffix) == latex.charAt(nlen - 1 - suffix)) {
+            suffix++;
+        }
+
+        // the innermost group whose contents contain the edit
+        Group g = null;
+        for (Group r : groups) {
+            if (r.start < prefix && olen - suffix < r.end && (g == null || r.start > g.start)) {
+                g = r;
+            }
+        }
+
+        for (; g != null; g = g.parent) {
+            if (reparse(g, latex, nlen - olen)) {
+                source = latex;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean reparse(Group g, String latex, int delta) {
+        final int end = g.end + delta;
+        final RowAtom row = getRow(g);
+        if (row == null || g.atIsLetter != 0 || g.atom instanceof TypedAtom || !isPlain(latex.substring(g.start + 1, end - 1))) {
+            return false;
+        }
+
+        final ParseLimits.Budget newBudget = ParseLimits.getBudget(formula, latex.length());
+        final List<Group> oldGroups = groups;
+        final ParseBuffer oldString = parseString;
+        final TeXFormula oldFormula = formula;
+        final ParseLimits.Budget oldBudget = budget;
+        final boolean oldIgnoreWhiteSpace = ignoreWhiteSpace;
+        final int oldAtIsLetter = atIsLetter;
+        final int oldLen = len;
+        final List<Group> newGroups = new ArrayList<Group>();
+
+        groups = newGroups;
+        parseString = new ParseBuffer(latex);
+        len = latex.length();
+        pos = g.start;
+        group = 0;
+        currentGroup = g.parent;
+        formula = g.container;
+        ignoreWhiteSpace = g.ignoreWhiteSpace;
+        atIsLetter = g.atIsLetter;
+        expanded = false;
+        budget = newBudget;
+
+        Atom atom = null;
+        boolean done = false;
+        ParseLimits.Budget outer = ParseLimits.enter(budget);
+        nesting++;
+        try {
+            atom = parseGroup();
+            done = atom != null && !(atom instanceof TypedAtom) && pos == end && !expanded && macroScope.getVersion() == version;
+        } catch (ParseException e) {
+            // the whole string will be parsed again
+        } finally {
+            nesting--;
+            ParseLimits.exit(budget, outer);
+            groups = oldGroups;
+            formula = oldFormula;
+            ignoreWhiteSpace = oldIgnoreWhiteSpace;
+            atIsLetter = oldAtIsLetter;
+            currentGroup = null;
+            if (!done) {
+                parseString = oldString;
+                len = oldLen;
+                budget = oldBudget;
+                expanded = false;
+            }
+        }
+
+        if (!done) {
+            return false;
+        }
+
+        for (ListIterator<Atom> it = row.elements.listIterator(); it.hasNext();) {
+            if (it.next() == g.atom) {
+                it.set(atom);
+                break;
+            }
+        }
+
+        // the records of the group and of its subgroups are replaced, the others are moved
+        for (Iterator<Group> it = groups.iterator(); it.hasNext();) {
+            Group r = it.next();
+            if (r.start >= g.start && r.end <= g.end) {
+                it.remove();
+            } else if (r.start >= g.end) {
+                r.start += delta;
+                r.end += delta;
+            } else if (r.end >= g.end) {
+                r.end += delta;
+            }
+        }
+        groups.addAll(newGroups);
+
+        // the rows containing the group must be laid out again
+        for (Group r = g; r != null; r = r.parent) {
+            ((RowAtom) r.container.root).invalidateBox();
+        }
+
+        pos = len;
+        return true;
+    }
+
+    /** Get the row containing the atom of a group: the group and all the groups containing
+     * it must still be in the rows where they have been added
+     */
+    private RowAtom getRow(Group g) {
+        Atom root = g.container.root;
+        if (!(root instanceof RowAtom) || root == g.atom || !((RowAtom) root).elements.contains(g.atom)) {
+            return null;
+        }
+        if (g.parent == null) {
+            return g.container == formula ? (RowAtom) root : null;
+        }
+        if (g.parent.atom != root || getRow(g.parent) == null) {
+            return null;
+        }
+
+        return (RowAtom) root;
+    }
+
+    /** Return true if the first pass changes nothing in the given string
+     */
+    private boolean isPlain(String s) {
+        if (s.indexOf("newcommand") != -1 || s.indexOf("jlmDynamic") != -1) {
+            return false;
+        }
+        try {
+            TeXFormula f = TeXFormula.make();
+            f.macroScope = macroScope;
+            TeXParser tp = new TeXParser(isPartial, s, f, true);
+            return s.contentEquals(tp.parseString);
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
     private Atom getScripts(char f) throws ParseException {
         pos++;
         Atom first = getArgument();
@@ -852,33 +1138,13 @@ public class TeXParser {
         if (pos == len)
             return null;
 
-        int group, spos;
-        char ch = parseString.charAt(pos);
-
-        if (pos < len && ch == open) {
-            group = 1;
-            spos = pos;
-            while (pos < len - 1 && group != 0) {
-                pos++;
-                ch = parseString.charAt(pos);
-                if (ch == open)
-                    group++;
-                else if (ch == close)
-                    group--;
-                else if (ch == ESCAPE && pos != len - 1)
-                    pos++;
-            }
-
-            pos++;
-
-            if (group != 0) {
-                return parseString.substring(spos + 1, pos);
-            }
-
-            return parseString.substring(spos + 1, pos - 1);
-        } else {
+        if (parseString.charAt(pos) != open) {
             throw new ParseException("missing '" + open + "'!");
         }
+
+        tokens.readGroup(parseString, pos, open, close);
+        pos = tokens.end;
+        return parseString.substring(tokens.offset, tokens.offset + tokens.length);
     }
 
     /** Get the contents between two strings as in \begin{foo}...\end{foo}
@@ -895,17 +1161,21 @@ public class TeXParser {
         int oc = 0, cc = 0;
         int startC = 0;
         char prev = '\0';
-        StringBuffer buf = new StringBuffer();
+        // the contents are taken from the parsed string at the end instead of being copied
+        final int start = pos;
 
         while (pos < len && group != 0) {
             char c = parseString.charAt(pos);
             char c1;
 
             if (prev != ESCAPE && c == ' ') {//Trick to handle case where close == "\end   {foo}"
-                while (pos < len && parseString.charAt(pos++) == ' ') {
-                    buf.append(' ');
+                while (pos < len && parseString.charAt(pos) == ' ') {
+                    pos++;
+                }
+                if (pos == len) {
+                    break;
                 }
-                c = parseString.charAt(--pos);
+                c = parseString.charAt(pos);
                 if (isValidCharacterInCommand(prev) && isValidCharacterInCommand(c)) {
                     oc = cc = 0;
                 }
@@ -952,18 +1222,17 @@ public class TeXParser {
             }
 
             prev = c;
-            buf.append(c);
             pos++;
         }
 
         if (group != 0) {
             if (isPartial) {
-                return buf.toString();
+                return parseString.substring(start, pos);
             }
             throw new ParseException("The token " + open + " must be closed by " + close);
         }
 
-        return buf.substring(0, buf.length() - pos + startC);
+        return parseString.substring(start, startC);
     }
 
     /** Get the argument of a command in his atomic format
@@ -1091,21 +1360,21 @@ public class TeXParser {
     public Atom convertCharacter(char c, boolean oneChar) throws ParseException {
         if (ignoreWhiteSpace) {// The Unicode Greek letters in math mode are not drawn with the Greek font
             if (c >= 945 && c <= 969) {
-                return SymbolAtom.get( TeXFormula.symbolMappings[c]);
+                return SymbolAtom.get( TeXFormula.symbolMappings.get(c));
             } else if (c >= 913 && c <= 937) {
-                return TeXFormula.make( TeXFormula.symbolFormulaMappings[c]).root;
+                return TeXFormula.make( TeXFormula.symbolFormulaMappings.get(c)).root;
             }
         }
 
         c = convertToRomanNumber(c);
         if (((c < '0' || c > '9') && (c < 'a' || c > 'z') && (c < 'A' || c > 'Z'))) {
             Character.UnicodeBlock block = Character.UnicodeBlock.of(c);
-            if (!isLoading && !DefaultTeXFont.loadedAlphabets.contains(block)) {
+            if (!isLoading && block != null && !DefaultTeXFont.loadedAlphabets.contains(block)) {
                 DefaultTeXFont.addAlphabet(DefaultTeXFont.registeredAlphabets.get(block));
             }
 
-            String symbolName = TeXFormula.symbolMappings[c];
-            if (symbolName == null && (TeXFormula.symbolFormulaMappings == null || TeXFormula.symbolFormulaMappings[c] == null)) {
+            String symbolName = TeXFormula.symbolMappings.get(c);
+            if (symbolName == null && TeXFormula.symbolFormulaMappings.get(c) == null) {
 		TeXFormula.FontInfos fontInfos = null;
 		boolean isLatin = Character.UnicodeBlock.BASIC_LATIN.equals(block);
 		if ((isLatin && TeXFormula.isRegisteredBlock( Character.UnicodeBlock.BASIC_LATIN )) || !isLatin) {
@@ -1136,12 +1405,12 @@ public class TeXParser {
                 }
             } else {
                 if (!ignoreWhiteSpace) {// we are in text mode
-                    if ( TeXFormula.symbolTextMappings[c] != null) {
-                        return SymbolAtom.get( TeXFormula.symbolTextMappings[c]).setUnicode(c);
+                    if ( TeXFormula.symbolTextMappings.get(c) != null) {
+                        return SymbolAtom.get( TeXFormula.symbolTextMappings.get(c)).setUnicode(c);
                     }
                 }
-                if ( TeXFormula.symbolFormulaMappings != null && TeXFormula.symbolFormulaMappings[c] != null) {
-                    return TeXFormula.make( TeXFormula.symbolFormulaMappings[c]).root;
+                if ( TeXFormula.symbolFormulaMappings.get(c) != null) {
+                    return TeXFormula.make( TeXFormula.symbolFormulaMappings.get(c)).root;
                 }
 
                 try {
@@ -1177,25 +1446,18 @@ public class TeXParser {
     }
 
     private String getCommand() {
-        int spos = ++pos;
-        char ch = '\0';
-
-        while (pos < len) {
-            ch = parseString.charAt(pos);
-            if ((ch < 'a' || ch > 'z') && (ch < 'A' || ch > 'Z') && (atIsLetter == 0 || ch != '@'))
-                break;
-
-            pos++;
-        }
+        tokens.readCommand(parseString, pos, atIsLetter);
+        pos = tokens.end;
+        return commandName();
+    }
 
-        if (ch == '\0')
+    /** Get the name of the command just read by the tokenizer, a space after \cr is skipped
+     */
+    private String commandName() {
+        if (tokens.length == 0)
             return "";
 
-        if (pos == spos) {
-            pos++;
-        }
-
-        String com = parseString.substring(spos, pos);
+        String com = parseString.substring(tokens.offset, tokens.offset + tokens.length);
         if ("cr".equals(com) && pos < len && parseString.charAt(pos) == ' ') {
             pos++;
         }
@@ -1211,15 +1473,23 @@ public class TeXParser {
             return new EmptyAtom();
         }
 
-        if (MacroInfo.Commands.get(command) != null)
-            return processCommands(command);
+        if (!macroScope.isGlobal()) {
+            MacroInfo mac = macroScope.get(command);
+            if (mac != null) {
+                return processCommands(command, mac);
+            }
+        }
 
-        try {
-            return TeXFormula.get( command ).root;
-        } catch (FormulaNotFoundException e) {
-            try {
-                return SymbolAtom.get(command);
-            } catch (SymbolNotFoundException e1) { }
+        CommandTable.Entry entry = CommandTable.get(command);
+        if (entry != null) {
+            switch (entry.kind) {
+            case CommandTable.MACRO :
+                return processCommands(command, entry.macro);
+            case CommandTable.FORMULA :
+                return TeXFormula.get(command).root;
+            default :
+                return entry.symbol;
+            }
         }
 
         // not a valid command or symbol or predefined TeXFormula found
@@ -1232,9 +1502,18 @@ public class TeXParser {
 
     private void insert(int beg, int end, String formula) {
         parseString.replace(beg, end, formula);
+        expanded = true;
         len = parseString.length();
         pos = beg;
         insertion = true;
+        checkExpansion();
+    }
+
+    /** Check that the macro expansions are not infinite
+     * @throws LimitExceededException if too many macros have been expanded or if the expanded string is too long
+     */
+    private void checkExpansion() throws LimitExceededException {
+        budget.expansion(len);
     }
 
     /** Get the arguments ant the options of a command
@@ -1242,76 +1521,113 @@ public class TeXParser {
      * @param opts must be 1 if the options are found before the first argument and must be 2 if they must be found before the second argument
      * @return an array containing arguments and at the end the options are put
      */
-    /* Should be improved */
     public String[] getOptsArgs(int nbArgs, int opts) {
+        Arguments args = scanOptsArgs(nbArgs, opts);
+        try {
+            return args.toArray();
+        } finally {
+            releaseArguments();
+        }
+    }
+
+    /** Read the arguments and the options of a command without copying them, the
+     * returned views must be given back with {@link #releaseArguments()}
+     * @param nbArgs the number of arguments of the command
+     * @param opts must be 1 if the options are found before the first argument and must be 2 if they must be found before the second argument
+     * @return the views on the arguments, at the same indices as in {@link #getOptsArgs(int, int)}
+     */
+    private Arguments scanOptsArgs(int nbArgs, int opts) {
         //A maximum of 10 options can be passed to a command
-        String[] args = new String[nbArgs + 10 + 1];
-        if (nbArgs != 0) {
+        Arguments args = acquireArguments(nbArgs + 10 + 1);
+        try {
+            if (nbArgs != 0) {
 
-            //We get the options just after the command name
-            if (opts == 1) {
-                int j = nbArgs + 1;
-                try {
-                    for (; j < nbArgs + 11; j++) {
-                        skipWhiteSpace();
-                        args[j] = getGroup(L_BRACK, R_BRACK);
-                    }
-                }
-                catch (ParseException e) {
-                    args[j] = null;
+                //We get the options just after the command name
+                if (opts == 1) {
+                    scanOptions(args, nbArgs + 1);
                 }
-            }
 
-            //We get the first argument
-            skipWhiteSpace();
-            try {
-                args[1] = getGroup(L_GROUP, R_GROUP);
-            } catch (ParseException e) {
-                if (parseString.charAt(pos) != '\\') {
-                    args[1] = "" + parseString.charAt(pos);
-                    pos++;
-                }
-                else
-                    args[1] = getCommandWithArgs(getCommand());
-            }
+                //We get the first argument
+                skipWhiteSpace();
+                scanArgument(args, 1);
 
-            //We get the options after the first argument
-            if (opts == 2) {
-                int j = nbArgs + 1;
-                try {
-                    for (; j < nbArgs + 11; j++) {
-                        skipWhiteSpace();
-                        args[j] = getGroup(L_BRACK, R_BRACK);
-                    }
+                //We get the options after the first argument
+                if (opts == 2) {
+                    scanOptions(args, nbArgs + 1);
                 }
-                catch (ParseException e) {
-                    args[j] = null;
+
+                //We get the next arguments
+                for (int i = 2; i <= nbArgs; i++) {
+                    skipWhiteSpace();
+                    scanArgument(args, i);
                 }
-            }
 
-            //We get the next arguments
-            for (int i = 2; i <= nbArgs; i++) {
-                skipWhiteSpace();
-                try {
-                    args[i] = getGroup(L_GROUP, R_GROUP);
-                } catch (ParseException e) {
-                    if (parseString.charAt(pos) != '\\') {
-                        args[i] = "" + parseString.charAt(pos);
-                        pos++;
-                    }
-                    else {
-                        args[i] = getCommandWithArgs(getCommand());
-                    }
+                if (ignoreWhiteSpace) {
+                    skipWhiteSpace();
                 }
             }
+        } catch (RuntimeException e) {
+            releaseArguments();
+            throw e;
+        }
 
-            if (ignoreWhiteSpace) {
-                skipWhiteSpace();
-            }
+        return args;
+    }
+
+    private Arguments acquireArguments(int size) {
+        if (argDepth == arguments.length) {
+            arguments = Arrays.copyOf(arguments, 2 * argDepth);
+        }
+        Arguments args = arguments[argDepth];
+        if (args == null) {
+            args = arguments[argDepth] = new Arguments();
         }
+        argDepth++;
+        args.reset(parseString, size);
+
         return args;
     }
 
+    private void releaseArguments() {
+        argDepth--;
+    }
+
+    /** Read the options [...] at the current position, the missing ones stay unset
+     * @param args the arguments where the options are put
+     * @param from the index of the first option in args
+     */
+    private void scanOptions(Arguments args, int from) {
+        for (int j = from; j < from + 10; j++) {
+            skipWhiteSpace();
+            if (pos == len || parseString.charAt(pos) != L_BRACK) {
+                return;
+            }
+            tokens.readGroup(parseString, pos, L_BRACK, R_BRACK);
+            pos = tokens.end;
+            args.set(j, tokens.offset, tokens.offset + tokens.length);
+        }
+    }
+
+    /** Read an argument: a group {...}, a command with its arguments or a single character,
+     * it stays unset at the end of the parsed string
+     * @param args the arguments where the argument is put
+     * @param i the index of the argument in args
+     */
+    private void scanArgument(Arguments args, int i) {
+        tokens.readArgument(parseString, pos, atIsLetter);
+        switch (tokens.kind) {
+        case TeXTokenizer.END :
+            return;
+        case TeXTokenizer.COMMAND :
+            pos = tokens.end;
+            args.set(i, getCommandWithArgs(commandName()));
+            return;
+        default :
+            pos = tokens.end;
+            args.set(i, tokens.offset, tokens.offset + tokens.length);
+        }
+    }
+
     /**
      * return a string with command and options and args
      * @param command name of command
@@ -1323,31 +1639,38 @@ public class TeXParser {
             return getGroup("\\left", "\\right");
         }
 
-        MacroInfo mac = MacroInfo.Commands.get(command);
+        MacroInfo mac = macroScope.get(command);
         if (mac != null) {
             int mac_opts = 0;
             if (mac.hasOptions) {
                 mac_opts = mac.posOpts;
             }
 
-            String[] mac_args = getOptsArgs(mac.nbArgs, mac_opts);
-            StringBuffer mac_arg = new StringBuffer("\\");
-            mac_arg.append(command);
-            for (int j = 0; j < mac.posOpts; j++) {
-                String arg_t = mac_args[mac.nbArgs + j + 1];
-                if (arg_t != null) {
-                    mac_arg.append("[").append(arg_t).append("]");
+            Arguments mac_args = scanOptsArgs(mac.nbArgs, mac_opts);
+            try {
+                StringBuilder mac_arg = new StringBuilder("\\");
+                mac_arg.append(command);
+                for (int j = 0; j < mac.posOpts; j++) {
+                    int k = mac.nbArgs + j + 1;
+                    if (mac_args.isSet(k)) {
+                        mac_arg.append('[');
+                        mac_args.appendTo(mac_arg, k);
+                        mac_arg.append(']');
+                    }
                 }
-            }
 
-            for (int j = 0; j < mac.nbArgs; j++) {
-                String arg_t = mac_args[j + 1];
-                if (arg_t != null) {
-                    mac_arg.append("{").append(arg_t).append("}");
+                for (int j = 0; j < mac.nbArgs; j++) {
+                    if (mac_args.isSet(j + 1)) {
+                        mac_arg.append('{');
+                        mac_args.appendTo(mac_arg, j + 1);
+                        mac_arg.append('}');
+                    }
                 }
-            }
 
-            return mac_arg.toString();
+                return mac_arg.toString();
+            } finally {
+                releaseArguments();
+            }
         }
 
         return "\\" + command;
@@ -1357,21 +1680,32 @@ public class TeXParser {
      * Processes the given TeX command (by parsing following command arguments
      * in the parse string).
      */
-    private Atom processCommands(String command) throws ParseException {
-        MacroInfo mac = MacroInfo.Commands.get(command);
+    private Atom processCommands(String command, MacroInfo mac) throws ParseException {
         int opts = 0;
         if (mac.hasOptions)
             opts = mac.posOpts;
 
-        String[] args = getOptsArgs(mac.nbArgs, opts);
-        args[0] = command;
+        Arguments views = scanOptsArgs(mac.nbArgs, opts);
+        String[] args;
+        String expansion = null;
+        try {
+            if (mac.handler instanceof NewCommandMacro.Handler) {
+                // a user macro is expanded directly from the parsed text
+                expansion = ((NewCommandMacro.Handler) mac.handler).expand(views, mac.nbArgs);
+                args = null;
+            } else {
+                args = views.toArray();
+            }
+        } finally {
+            releaseArguments();
+        }
 
-        if (NewCommandMacro.isMacro(command)) {
-            String ret = (String) mac.invoke(this, args);
-            insert(spos, pos, ret);
+        if (expansion != null) {
+            insert(spos, pos, expansion);
             return null;
         }
 
+        args[0] = command;
         return (Atom) mac.invoke(this, args);
     }
 
@@ -1473,4 +1807,28 @@ public class TeXParser {
 
         return c;
     }
+
+    /**
+     * A group {...} of the parsed string
+     */
+    private static final class Group {
+
+        // the positions of '{' and after '}'
+        int start;
+        int end;
+        final Group parent;
+        // the formula where the atom of the group has been added
+        final TeXFormula container;
+        final int atIsLetter;
+        final boolean ignoreWhiteSpace;
+        Atom atom;
+
+        Group(int start, Group parent, TeXFormula container, int atIsLetter, boolean ignoreWhiteSpace) {
+            this.start = start;
+            this.parent = parent;
+            this.container = container;
+            this.atIsLetter = atIsLetter;
+            this.ignoreWhiteSpace = ignoreWhiteSpace;
+        }
+    }
 }
@@ -0,0 +1,148 @@
+/* TeXTokenizer.java
+ * =========================================================================
+ * This file is part of the JLaTeXMath Library - http://forge.scilab.org/jlatexmath
+ *
+ * Copyright (C) 2013 DENIZET Calixte
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License can be found in the file
+ * LICENSE.txt provided with the source distribution of this program (see
+ * the META-INF directory in the source jar). This license can also be
+ * found on the GNU website at http://www.gnu.org/licenses/gpl.html.
+ *
+ * If you did not receive a copy of the GNU General Public License along
+ * with this program, contact the lead developer, or write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ *
+ */
+
+package org.scilab.forge.jlatexmath;
+
+/**
+ * The scanner of a {@link TeXParser}. It reads a token of the parsed text in place: a token
+ * is only a kind, an offset and a length in the text, so nothing is copied while the parser
+ * looks for the end of a command, of a group or of an argument.
+ */
+final class TeXTokenizer {
+
+    /** The end of the text */
+    static final int END = 0;
+    /** A char which is neither a command nor a group */
+    static final int CHAR = 1;
+    /** A command, the token is its name without the backslash */
+    static final int COMMAND = 2;
+    /** A group, the token is its contents without the delimiters */
+    static final int GROUP = 3;
+
+    private static final char ESCAPE = '\\';
+    private static final char L_GROUP = '{';
+    private static final char R_GROUP = '}';
+
+    // the last token read
+    int kind;
+    int offset;
+    int length;
+    // the position after the token in the text
+    int end;
+    // false if the last group is not closed at the end of the text
+    boolean closed;
+
+    /**
+     * Read the argument of a command: a group {...}, a command or a single char
+     * @param text the parsed text
+     * @param pos the position of the argument
+     * @param atIsLetter not 0 if @ is a letter in the names of the commands
+     */
+    void readArgument(CharSequence text, int pos, int atIsLetter) {
+        if (pos >= text.length()) {
+            set(END, pos, 0, pos);
+            return;
+        }
+
+        final char ch = text.charAt(pos);
+        if (ch == L_GROUP) {
+            readGroup(text, pos, L_GROUP, R_GROUP);
+        } else if (ch == ESCAPE) {
+            readCommand(text, pos, atIsLetter);
+        } else {
+            set(CHAR, pos, 1, pos + 1);
+        }
+    }
+
+    /**
+     * Read a command: its name is made of letters (and of @ when it is a letter) or of
+     * one other char, it is empty at the end of the text
+     * @param text the parsed text
+     * @param pos the position of the backslash
+     * @param atIsLetter not 0 if @ is a letter in the names of the commands
+     */
+    void readCommand(CharSequence text, int pos, int atIsLetter) {
+        final int len = text.length();
+        final int start = ++pos;
+        char ch = '\0';
+
+        while (pos < len) {
+            ch = text.charAt(pos);
+            if ((ch < 'a' || ch > 'z') && (ch < 'A' || ch > 'Z') && (atIsLetter == 0 || ch != '@'))
+                break;
+
+            pos++;
+        }
+
+        if (ch == '\0') {
+            set(COMMAND, start, 0, pos);
+            return;
+        }
+
+        if (pos == start) {
+            pos++;
+        }
+        set(COMMAND, start, pos - start, pos);
+    }
+
+    /**
+     * Read a group, the escaped delimiters are skipped. At the end of the text the group
+     * is not closed and its contents go until the end.
+     * @param text the parsed text
+     * @param pos the position of the opening delimiter
+     * @param open the opening delimiter
+     * @param close the closing delimiter
+     */
+    void readGroup(CharSequence text, int pos, char open, char close) {
+        final int len = text.length();
+        final int start = pos;
+        int group = 1;
+
+        while (pos < len - 1 && group != 0) {
+            pos++;
+            char ch = text.charAt(pos);
+            if (ch == open)
+                group++;
+            else if (ch == close)
+                group--;
+            else if (ch == ESCAPE && pos != len - 1)
+                pos++;
+        }
+
+        pos++;
+        closed = group == 0;
+        set(GROUP, start + 1, (closed ? pos - 1 : pos) - start - 1, pos);
+    }
+
+    private void set(int kind, int offset, int length, int end) {
+        this.kind = kind;
+        this.offset = offset;
+        this.length = length;
+        this.end = end;
+    }
+}
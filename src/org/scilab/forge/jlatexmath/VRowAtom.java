@@ -99,7 +99,7 @@ public class VRowAtom extends Atom {
 	}
 
 	vb.setShift(-raise.createBox(env).getWidth());
-	float t = vb.getSize() == 0 ? 0 : vb.children.getLast().getDepth();
+	float t = vb.getSize() == 0 ? 0 : vb.children.get(vb.getSize() - 1).getDepth();
 	vb.setHeight(vb.getDepth() + vb.getHeight() - t);
 	vb.setDepth(t);
 		
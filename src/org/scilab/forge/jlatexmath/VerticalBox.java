@@ -30,7 +30,6 @@
 package org.scilab.forge.jlatexmath;
 
 import com.dhsdevelopments.androidjlatexmath.swingcompat.Graphics2D;
-import java.util.ListIterator;
 
 /**
  * A box composed of other boxes, put one above the other.
@@ -95,7 +94,8 @@ class VerticalBox extends Box {
 
     public void draw(Graphics2D g2, float x, float y) {
         float yPos = y - height;
-        for (Box b : children) {
+        for (int i = 0, n = children.size(); i < n; i++) {
+            Box b = children.get(i);
             yPos += b.getHeight();
             b.draw(g2, x + b.getShift() - leftMostPos, yPos);
             yPos += b.getDepth();
@@ -110,9 +110,8 @@ class VerticalBox extends Box {
         // iterate from the last child box (the lowest) to the first (the highest)
         // untill a font id is found that's not equal to NO_FONT
         int fontId = TeXFont.NO_FONT;
-        for (ListIterator it = children.listIterator(children.size()); fontId == TeXFont.NO_FONT
-                 && it.hasPrevious();)
-            fontId = ((Box) it.previous()).getLastFontId();
+        for (int i = children.size() - 1; fontId == TeXFont.NO_FONT && i >= 0; i--)
+            fontId = children.get(i).getLastFontId();
 
         return fontId;
     }